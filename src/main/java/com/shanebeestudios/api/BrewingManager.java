@@ -2,27 +2,38 @@ package com.shanebeestudios.api;
 
 import com.shanebeestudios.api.machine.BrewingStand;
 import com.shanebeestudios.api.property.BrewingProperties;
+import com.shanebeestudios.api.storage.*;
 import com.shanebeestudios.api.util.Util;
+import com.shanebeestudios.api.task.FurnaceTick;
 import org.bukkit.NamespacedKey;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class BrewingManager {
+
+    // Below this many changes the full brewing stand file isn't rewritten
+    private static final int COMPACT_MIN_CHANGES = 256;
+    private static final int STORAGE_BUCKETS = 16;
+
     private final VirtualFurnaceAPI virtualFurnaceAPI;
     private final Map<UUID, BrewingStand> brewingMap;
     private final NamespacedKey key;
-    private File brewingFile;
-    private FileConfiguration brewingConfig;
+    private final MachineStorage<BrewingStand> storage;
+    private final StorageWriter storageWriter;
+    private final MachineJournal<BrewingStand> journal;
 
     public BrewingManager(VirtualFurnaceAPI api) {
         this.virtualFurnaceAPI = api;
-        this.brewingMap = new HashMap<>();
+        this.brewingMap = new ConcurrentHashMap<>();
         this.key = Util.getKey("brewingId");
-        loadBrewingConfig();
+        this.storage = loadStorage();
+        this.storageWriter = new StorageWriter(this.storage, "brewing stands");
+        this.journal = new MachineJournal<>(virtualFurnaceAPI.getJavaPlugin().getDataFolder(), "brewing-stands",
+                BrewingStand::writeBinary, BrewingStand::readBinary);
+        loadBrewingStands();
     }
 
     public BrewingStand getByID(@NotNull UUID uuid) {
@@ -37,73 +48,195 @@ public class BrewingManager {
         BrewingStand stand = new BrewingStand(name, BrewingProperties.NORMAL);
         this.brewingMap.put(stand.getUniqueID(), stand);
         saveBrewing(stand, true);
+        this.journal.put(stand.snapshot());
+        this.journal.commit();
+        stand.wake();
         return stand;
     }
 
-    private void loadBrewingConfig() {
-        if (this.brewingFile == null) {
-            this.brewingFile = new File(this.virtualFurnaceAPI.getJavaPlugin().getDataFolder(), "brewing-stands.yml");
+    public void removeBrewingStand(@NotNull BrewingStand stand) {
+        if (!this.brewingMap.remove(stand.getUniqueID(), stand)) return;
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        if (furnaceTick != null) {
+            furnaceTick.forget(stand);
+        }
+        removeBrewingFromConfig(stand, true);
+        this.journal.remove(stand.getUniqueID());
+        this.journal.commit();
+    }
+
+    private MachineStorage<BrewingStand> loadStorage() {
+        File dataFolder = this.virtualFurnaceAPI.getJavaPlugin().getDataFolder();
+        YamlMachineStorage<BrewingStand> yamlStorage = new YamlMachineStorage<>(new File(dataFolder, "brewing-stands.yml"),
+                new File(dataFolder, "brewing-stands-changes.yml"), "brewing", BrewingStand.class,
+                "Brewing stands file", "Modify this file at your own risk; modification of this file will receive no support.");
+        MachineStorage<BrewingStand> storage;
+        switch (this.virtualFurnaceAPI.getStorageType()) {
+            case BINARY -> storage = new BinaryMachineStorage<>(new File(dataFolder, "brewing-stands.dat"),
+                    new File(dataFolder, "brewing-stands-changes.dat"), BrewingStand::writeBinary, BrewingStand::readBinary);
+            case REGION -> storage = new RegionMachineStorage<>(new File(dataFolder, "brewing-stands"), 256,
+                    BrewingStand::writeBinary, BrewingStand::readBinary);
+            case SQLITE -> storage = new SqlMachineStorage<>(new File(dataFolder, "brewing-stands.db"), "brewing_stands",
+                    BrewingStand::writeBinary, BrewingStand::readBinary);
+            case BUCKET -> storage = new BucketMachineStorage<>(new File(dataFolder, "brewing-stand-buckets"), STORAGE_BUCKETS,
+                    BrewingStand::writeBinary, BrewingStand::readBinary);
+            default -> storage = yamlStorage;
+        }
+        if (storage != yamlStorage) {
+            String type = this.virtualFurnaceAPI.getStorageType().name().toLowerCase(Locale.ROOT);
+            if (!storage.exists() && yamlStorage.exists()) {
+                try {
+                    int migrated = yamlStorage.migrateTo(storage);
+                    if (!virtualFurnaceAPI.isSilentStart())
+                        Util.log("Migrated: &b" + migrated + "&7 brewing stands to " + type + " storage");
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    Util.error("&cFailed to migrate brewing stands to " + type + " storage, YAML storage is used instead");
+                    return yamlStorage;
+                }
+            }
+            return storage;
         }
 
-        if (!brewingFile.exists())
+        if (!yamlStorage.exists())
             this.virtualFurnaceAPI.getJavaPlugin().saveResource("brewing-stands.yml", false);
 
-        this.brewingConfig = YamlConfiguration.loadConfiguration(this.brewingFile);
-        loadBrewingStands();
+        return yamlStorage;
     }
 
     public void clearBrewingFile() {
-        brewingFile.delete();
+        storage.delete();
+        journal.deleteAll();
     }
 
-    void loadBrewingStands() {
-        ConfigurationSection section = this.brewingConfig.getConfigurationSection("brewing");
-        if (section != null) {
-            for (String string : section.getKeys(true)) {
-                if (section.get(string) instanceof BrewingStand) {
-                    BrewingStand brewingStand = ((BrewingStand) section.get(string));
-                    if (brewingStand == null) return;
-
-                    this.brewingMap.put(UUID.fromString(string), brewingStand);
-                }
+    synchronized void loadBrewingStands() {
+        long start = System.nanoTime();
+        Map<UUID, BrewingStand> stands = new LinkedHashMap<>();
+        for (BrewingStand stand : this.storage.load()) {
+            stands.put(stand.getUniqueID(), stand);
+        }
+        long loaded = System.nanoTime();
+        Set<UUID> removed = new HashSet<>();
+        int replayed = this.journal.replay(stands, removed);
+        long replayedAt = System.nanoTime();
+        for (BrewingStand stand : stands.values()) {
+            this.brewingMap.put(stand.getUniqueID(), stand);
+            stand.clearUnjournaled();
+            // Loaded from the changes file or the journal, the storage has to keep a copy instead
+            if (stand.clearDirty()) {
+                this.storage.save(stand.snapshot());
             }
         }
-        if (!virtualFurnaceAPI.isSilentStart())
-            Util.log("Loaded: &b" + this.brewingMap.size() + "&7 furnaces");
+        // Removed by the journal, whether the storage could load them or not
+        for (UUID uuid : removed) {
+            this.storage.remove(uuid);
+        }
+        long end = System.nanoTime();
+        if (!virtualFurnaceAPI.isSilentStart()) {
+            Util.log("Loaded: &b" + this.brewingMap.size() + "&7 brewing stands in &b" + TimeUnit.NANOSECONDS.toMillis(end - start) +
+                    "ms &7(storage: " + TimeUnit.NANOSECONDS.toMillis(loaded - start) +
+                    "ms, journal: " + TimeUnit.NANOSECONDS.toMillis(replayedAt - loaded) +
+                    "ms, setup: " + TimeUnit.NANOSECONDS.toMillis(end - replayedAt) + "ms)");
+            if (replayed > 0)
+                Util.log("Replayed: &b" + replayed + "&7 journaled brewing stand changes");
+        }
     }
 
     public void removeBrewingFromConfig(BrewingStand stand, boolean save) {
-        this.brewingConfig.set("brewing." + stand.getUniqueID(), null);
+        synchronized (this) {
+            this.storage.remove(stand.getUniqueID());
+        }
         if (save)
             saveConfig();
     }
 
     public void saveBrewing(BrewingStand stand, boolean saveToFile) {
-        this.brewingConfig.set("brewing." + stand.getUniqueID(), stand);
+        synchronized (this) {
+            // Cleared first, changes made while copying mark it dirty again
+            stand.clearDirty();
+            this.storage.save(stand.snapshot());
+        }
         if (saveToFile)
             saveConfig();
     }
 
-    private void saveConfig() {
-        try {
-            brewingConfig.save(brewingFile);
-        } catch (ConcurrentModificationException ignored) {
-            // Don't know if this would be called but hey, we'll have it here just because.
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    // Only writes the changes since the last compaction, unless there are a lot of them
+    // Written on the storage writer's thread, saves requested before it gets to them are written together
+    private CompletableFuture<Void> saveConfig() {
+        // A damaged storage still has brewing stands which couldn't be loaded, it isn't compacted
+        if (!this.storage.isDamaged() && this.storage.getChangeCount() > Math.max(COMPACT_MIN_CHANGES, this.brewingMap.size() / 4)) {
+            return compactAsync();
         }
+        return this.storageWriter.requestWrite();
+    }
+
+    public void compact() {
+        compactAsync();
+    }
+
+    // Completed once the brewing stands are written to file
+    // Stands are copied in between ticks, with the ticks they skipped applied
+    // The tick guard is never waited for while holding this manager's lock, the tick takes them the other way around
+    public CompletableFuture<Void> compactAsync() {
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        return furnaceTick != null ? furnaceTick.settle(this::compactSettled) : compactSettled();
+    }
+
+    private synchronized CompletableFuture<Void> compactSettled() {
+        List<BrewingStand> snapshots = new ArrayList<>(this.brewingMap.size());
+        for (BrewingStand stand : this.brewingMap.values()) {
+            stand.clearDirty();
+            snapshots.add(stand.snapshot());
+        }
+        this.storage.compact(snapshots);
+        long segment = this.journal.checkpoint();
+        CompletableFuture<Void> future = this.storageWriter.requestWrite();
+        future.thenRun(() -> this.journal.delete(segment));
+        return future;
     }
 
     public void shutdown() {
         saveAll();
+        storageWriter.shutdown();
+        storage.close();
+        journal.shutdown();
         brewingMap.clear();
     }
 
     public void saveAll() {
+        saveAllAsync();
+    }
+
+    // Completed once the brewing stands are written to file
+    public CompletableFuture<Void> saveAllAsync() {
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        return furnaceTick != null ? furnaceTick.settle(this::saveAllSettled) : saveAllSettled();
+    }
+
+    private CompletableFuture<Void> saveAllSettled() {
+        long segment;
+        synchronized (this) {
+            for (BrewingStand stand : this.brewingMap.values()) {
+                if (stand.isDirty()) {
+                    saveBrewing(stand, false);
+                }
+            }
+            segment = this.journal.checkpoint();
+        }
+        CompletableFuture<Void> future = saveConfig();
+        // Once written, the storage has everything which was journaled so far
+        future.thenRun(() -> this.journal.delete(segment));
+        return future;
+    }
+
+    // Called by the furnace tick in between saves, so changes aren't lost when the server stops without saving
+    public synchronized void journalChanges() {
         for (BrewingStand stand : this.brewingMap.values()) {
-            saveBrewing(stand, false);
+            if (stand.clearUnjournaled()) {
+                this.journal.put(stand.snapshot());
+            }
         }
-        saveConfig();
+        this.journal.commit();
     }
 
 }
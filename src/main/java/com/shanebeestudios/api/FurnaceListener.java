@@ -3,27 +3,49 @@ package com.shanebeestudios.api;
 import com.shanebeestudios.api.event.machine.FurnaceExtractEvent;
 import com.shanebeestudios.api.machine.*;
 import com.shanebeestudios.api.recipe.FurnaceFuel;
-import org.bukkit.Material;
+import com.shanebeestudios.api.task.ViewTick;
+import com.shanebeestudios.api.util.Util;
+import org.bukkit.*;
 import org.bukkit.block.Block;
 import org.bukkit.entity.*;
 import org.bukkit.event.*;
 import org.bukkit.event.block.Action;
-import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.*;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.server.ServerLoadEvent;
 import org.bukkit.inventory.*;
+import org.bukkit.plugin.Plugin;
+
+import java.util.*;
 
 class FurnaceListener implements Listener {
 
     private final FurnaceManager furnaceManager;
     private final RecipeManager recipeManager;
+    private final Plugin plugin;
+    private final ViewTick viewTick;
+    private final Set<NamespacedKey> vanillaFuels = new HashSet<>();
     //private final TileManager tileManager;
 
     FurnaceListener(VirtualFurnaceAPI virtualFurnaceAPI) {
         this.furnaceManager = virtualFurnaceAPI.getFurnaceManager();
         this.recipeManager = virtualFurnaceAPI.getRecipeManager();
+        this.plugin = virtualFurnaceAPI.getJavaPlugin();
+        this.viewTick = virtualFurnaceAPI.getViewTick();
+        for (FurnaceFuel fuel : FurnaceFuel.getVanillaFuels()) {
+            this.vanillaFuels.add(fuel.getKey());
+        }
         //this.tileManager = virtualFurnaceAPI.getTileManager();
     }
 
+    // Tag contents may have changed, re-expand tag based fuels
+    @EventHandler
+    private void onServerLoad(ServerLoadEvent event) {
+        if (event.getType() == ServerLoadEvent.LoadType.RELOAD) {
+            this.recipeManager.refreshFuelIndex();
+        }
+    }
+
     @EventHandler
     private void onClickFurnace(PlayerInteractEvent event) {
         Action action = event.getAction();
@@ -56,11 +78,49 @@ class FurnaceListener implements Listener {
         }*/
     }
 
+    // Track machine inventories while they are viewed, the view tick keeps them up to date
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    private void onInventoryOpen(InventoryOpenEvent event) {
+        Inventory inventory = event.getInventory();
+        if (inventory.getHolder() instanceof Machine machine) {
+            machine.setViewed(true);
+            this.viewTick.track(machine, Util.copyItems(inventory.getContents()));
+            machine.wake();
+        }
+    }
+
+    @EventHandler
+    private void onInventoryClose(InventoryCloseEvent event) {
+        Inventory inventory = event.getInventory();
+        if (inventory.getHolder() instanceof Machine machine) {
+            this.viewTick.close(machine, event.getPlayer());
+            // The closing player is still a viewer while the event is called
+            if (inventory.getViewers().size() <= 1) {
+                machine.setViewed(false);
+            }
+        }
+    }
+
+    @EventHandler
+    private void onInventoryDrag(InventoryDragEvent event) {
+        if (event.getInventory().getHolder() instanceof Machine machine) {
+            wakeLater(machine);
+        }
+    }
+
+    // Wake on the next tick, after the click/drag has been applied to the inventory
+    private void wakeLater(Machine machine) {
+        Bukkit.getScheduler().runTask(this.plugin, machine::wake);
+    }
+
     @EventHandler
     private void onInventoryClick(InventoryClickEvent event) {
         Inventory inventory = event.getInventory();
         InventoryHolder holder = inventory.getHolder();
         HumanEntity clicker = event.getWhoClicked();
+        if (holder instanceof Machine machine) {
+            wakeLater(machine);
+        }
         if (holder instanceof Furnace furnace && clicker instanceof Player) {
             int slot = event.getRawSlot();
             // Give XP to player when they extract from the furnace
@@ -81,7 +141,7 @@ class FurnaceListener implements Listener {
                 ItemStack cursor = clicker.getItemOnCursor();
 
                 FurnaceFuel fuel = recipeManager.getFuelByMaterial(cursor.getType());
-                if (fuel != null && isNotVanillaFuel(cursor)) {
+                if (fuel != null && isNotVanillaFuel(fuel)) {
                     ItemStack furnaceFuel = furnace.getFuel();
                     event.setCancelled(true);
                     if (furnaceFuel != null && furnaceFuel.getType() == cursor.getType()) {
@@ -129,13 +189,8 @@ class FurnaceListener implements Listener {
         }
     }
 
-    private boolean isNotVanillaFuel(ItemStack itemStack) {
-        for (FurnaceFuel fuel : FurnaceFuel.getVanillaFuels()) {
-            if (fuel.getFuel() == itemStack.getType()) {
-                return false;
-            }
-        }
-        return true;
+    private boolean isNotVanillaFuel(FurnaceFuel fuel) {
+        return !this.vanillaFuels.contains(fuel.getKey());
     }
 /*
     @EventHandler
@@ -2,10 +2,10 @@ package com.shanebeestudios.api;
 
 import com.shanebeestudios.api.machine.Furnace;
 import com.shanebeestudios.api.property.FurnaceProperties;
+import com.shanebeestudios.api.storage.*;
+import com.shanebeestudios.api.task.FurnaceTick;
 import com.shanebeestudios.api.util.Util;
 import org.bukkit.*;
-import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.*;
 import org.bukkit.enchantments.Enchantment;
 import org.bukkit.inventory.*;
 import org.bukkit.inventory.meta.ItemMeta;
@@ -14,6 +14,7 @@ import org.jetbrains.annotations.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.Consumer;
 
 /**
@@ -23,21 +24,39 @@ import java.util.function.Consumer;
 @SuppressWarnings({"unused", "UnusedReturnValue"})
 public class FurnaceManager {
 
+    // Below this many changes the full furnace file isn't rewritten
+    private static final int COMPACT_MIN_CHANGES = 256;
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+    private static final int STORAGE_BUCKETS = 16;
+
     private final VirtualFurnaceAPI virtualFurnaceAPI;
     private final Map<UUID, Furnace> furnaceMap;
     private final NamespacedKey key;
-    private File furnaceFile;
-    private FileConfiguration furnaceConfig;
+    private final MachineStorage<Furnace> storage;
+    private final StorageWriter storageWriter;
+    private final MachineJournal<Furnace> journal;
+    // Set when furnaces are loaded on access
+    private final RegionMachineStorage<Furnace> lazyStorage;
+    // Loaded furnaces, least recently accessed first
+    private final LinkedHashMap<UUID, Furnace> recentFurnaces = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int cacheSize = DEFAULT_CACHE_SIZE;
 
     FurnaceManager(VirtualFurnaceAPI virtualFurnaceAPI) {
         this.virtualFurnaceAPI = virtualFurnaceAPI;
-        this.furnaceMap = new HashMap<>();
+        this.furnaceMap = new ConcurrentHashMap<>();
         this.key = new NamespacedKey(virtualFurnaceAPI.getJavaPlugin(), "furnaceID");
-        loadFurnaceConfig();
+        this.storage = loadStorage();
+        this.lazyStorage = this.storage instanceof RegionMachineStorage<Furnace> regionStorage ? regionStorage : null;
+        this.storageWriter = new StorageWriter(this.storage, "furnaces");
+        this.journal = new MachineJournal<>(virtualFurnaceAPI.getJavaPlugin().getDataFolder(), "furnaces",
+                Furnace::writeBinary, Furnace::readBinary);
+        loadFurnaces();
     }
 
     /**
      * Get a collection of all {@link Furnace}s
+     * <p>The collection reflects furnaces being created/removed while iterating it, without failing</p>
+     * <p>When furnaces are {@link #isLoadedOnAccess() loaded on access}, only loaded furnaces are included</p>
      *
      * @return Collection of all furnaces
      */
@@ -48,13 +67,136 @@ public class FurnaceManager {
     /**
      * Get a {@link Furnace} by ID
      *
+     * <p>When furnaces are {@link #isLoadedOnAccess() loaded on access}, a furnace which isn't loaded is read from storage</p>
+     *
      * @param uuid ID of furnace to grab
      * @return Furnace from ID (null if a furnace with this ID does not exist)
      */
     public Furnace getByID(@NotNull UUID uuid) {
+        Furnace furnace = this.furnaceMap.get(uuid);
+        if (this.lazyStorage == null) return furnace;
+        // Also read again if it was unloaded right after it was found
+        if (furnace == null || !touchFurnace(furnace)) {
+            return loadFurnace(uuid);
+        }
+        return furnace;
+    }
+
+    /**
+     * Get a {@link Furnace} by ID, if it is loaded
+     * <p>Unlike {@link #getByID(UUID)} this never reads a furnace from storage</p>
+     *
+     * @param uuid ID of furnace to grab
+     * @return Furnace from ID (null if a furnace with this ID is not loaded)
+     */
+    public @Nullable Furnace getLoadedFurnace(@NotNull UUID uuid) {
         return this.furnaceMap.get(uuid);
     }
 
+    /**
+     * Check whether furnaces are loaded when they are first accessed
+     * <p>This is the case with {@link StorageType#REGION region storage}. Only furnaces which were busy are loaded
+     * on startup, others are read from storage by {@link #getByID(UUID)}. Furnaces which are idle are unloaded again,
+     * least recently used first, once more than {@link #setCacheSize(int) the cache size} are loaded.</p>
+     *
+     * @return True if furnaces are loaded on access
+     */
+    public boolean isLoadedOnAccess() {
+        return this.lazyStorage != null;
+    }
+
+    /**
+     * Set the amount of furnaces which stay loaded when furnaces are {@link #isLoadedOnAccess() loaded on access}
+     * <p>Furnaces beyond this are unloaded once they are idle and nobody is viewing them.
+     * Unloaded furnaces are read from storage again when accessed, so references to them shouldn't be kept.</p>
+     *
+     * @param cacheSize Amount of furnaces
+     */
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("Cache size can not be negative");
+        }
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Get the amount of furnaces which stay loaded when furnaces are {@link #isLoadedOnAccess() loaded on access}
+     *
+     * @return Amount of furnaces
+     */
+    public int getCacheSize() {
+        return this.cacheSize;
+    }
+
+    private synchronized Furnace loadFurnace(UUID uuid) {
+        Furnace furnace = this.furnaceMap.get(uuid);
+        if (furnace == null) {
+            furnace = this.lazyStorage.read(uuid);
+            if (furnace == null) return null;
+            this.furnaceMap.put(uuid, furnace);
+            furnace.wake();
+        }
+        touchFurnace(furnace);
+        return furnace;
+    }
+
+    // Furnaces are only unloaded while holding the same lock, so an unloaded furnace is never put back
+    private boolean touchFurnace(Furnace furnace) {
+        synchronized (this.recentFurnaces) {
+            if (this.furnaceMap.get(furnace.getUniqueID()) != furnace) return false;
+            this.recentFurnaces.put(furnace.getUniqueID(), furnace);
+            return true;
+        }
+    }
+
+    /**
+     * Unload furnaces beyond the {@link #setCacheSize(int) cache size} which are idle
+     * <p><b>Internal use only!</b> Called by the {@link FurnaceTick} in between ticks.
+     * Changes are saved and journaled first, so the furnaces can be read from storage again.
+     * Furnaces which are accessed while this is running stay loaded.</p>
+     */
+    public synchronized void unloadFurnaces() {
+        if (this.lazyStorage == null) return;
+        List<Furnace> unload;
+        synchronized (this.recentFurnaces) {
+            int excess = this.recentFurnaces.size() - this.cacheSize;
+            if (excess <= 0) return;
+            unload = new ArrayList<>(excess);
+            for (Furnace furnace : this.recentFurnaces.values()) {
+                if (unload.size() == excess) break;
+                if (furnace.isIdle()) unload.add(furnace);
+            }
+            // Accessing one of them from now on puts it back, which keeps it loaded
+            for (Furnace furnace : unload) {
+                this.recentFurnaces.remove(furnace.getUniqueID());
+            }
+        }
+        boolean saved = false;
+        for (Furnace furnace : unload) {
+            // Removed in the meantime, saving it would bring it back
+            if (this.furnaceMap.get(furnace.getUniqueID()) != furnace) continue;
+            if (furnace.isDirty()) {
+                saveFurnace(furnace, false);
+                saved = true;
+            }
+            if (furnace.clearUnjournaled()) {
+                this.journal.put(furnace.snapshot());
+            }
+        }
+        this.journal.commit();
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        for (Furnace furnace : unload) {
+            synchronized (this.recentFurnaces) {
+                if (this.recentFurnaces.containsKey(furnace.getUniqueID())) continue;
+                if (!this.furnaceMap.remove(furnace.getUniqueID(), furnace)) continue;
+            }
+            if (furnaceTick != null) {
+                furnaceTick.forget(furnace);
+            }
+        }
+        if (saved) saveConfig();
+    }
+
     /**
      * Create a new furnace
      * <p>This will create a new furnace, add it to the tick list, and save to file</p>
@@ -107,10 +249,34 @@ public class FurnaceManager {
             function.accept(furnace);
         }
         this.furnaceMap.put(furnace.getUniqueID(), furnace);
+        if (this.lazyStorage != null) touchFurnace(furnace);
         saveFurnace(furnace, true);
+        this.journal.put(furnace.snapshot());
+        this.journal.commit();
+        furnace.wake();
         return furnace;
     }
 
+    /**
+     * Remove a furnace
+     * <p>This will remove the furnace from the tick list and from file</p>
+     *
+     * @param furnace Furnace to remove
+     */
+    public void removeFurnace(@NotNull Furnace furnace) {
+        if (!this.furnaceMap.remove(furnace.getUniqueID(), furnace)) return;
+        synchronized (this.recentFurnaces) {
+            this.recentFurnaces.remove(furnace.getUniqueID(), furnace);
+        }
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        if (furnaceTick != null) {
+            furnaceTick.forget(furnace);
+        }
+        removeFurnaceFromConfig(furnace, true);
+        this.journal.remove(furnace.getUniqueID());
+        this.journal.commit();
+    }
+
     /**
      * Create a {@link Furnace} that is attached to an {@link ItemStack}
      * <p><b>NOTE:</b> The default <b>{@link FurnaceProperties}</b> associated with this furnace will be <b>{@link FurnaceProperties#FURNACE}</b></p>
@@ -253,95 +419,248 @@ public class FurnaceManager {
         return null;
     }
 
-    private void loadFurnaceConfig() {
-        if (this.furnaceFile == null) {
-            this.furnaceFile = new File(this.virtualFurnaceAPI.getJavaPlugin().getDataFolder(), "furnaces.yml");
+    private MachineStorage<Furnace> loadStorage() {
+        File dataFolder = this.virtualFurnaceAPI.getJavaPlugin().getDataFolder();
+        YamlMachineStorage<Furnace> yamlStorage = new YamlMachineStorage<>(new File(dataFolder, "furnaces.yml"),
+                new File(dataFolder, "furnaces-changes.yml"), "furnaces", Furnace.class, "Furnace file", "Modify with caution");
+        MachineStorage<Furnace> storage;
+        switch (this.virtualFurnaceAPI.getStorageType()) {
+            case BINARY -> storage = new BinaryMachineStorage<>(new File(dataFolder, "furnaces.dat"),
+                    new File(dataFolder, "furnaces-changes.dat"), Furnace::writeBinary, Furnace::readBinary);
+            case REGION -> storage = new RegionMachineStorage<>(new File(dataFolder, "furnaces"), 256,
+                    Furnace::writeBinary, Furnace::readBinary);
+            case SQLITE -> storage = new SqlMachineStorage<>(new File(dataFolder, "furnaces.db"), "furnaces",
+                    Furnace::writeBinary, Furnace::readBinary);
+            case BUCKET -> storage = new BucketMachineStorage<>(new File(dataFolder, "furnace-buckets"), STORAGE_BUCKETS,
+                    Furnace::writeBinary, Furnace::readBinary);
+            default -> storage = yamlStorage;
         }
-        if (!furnaceFile.exists()) {
+        if (storage != yamlStorage) {
+            String type = this.virtualFurnaceAPI.getStorageType().name().toLowerCase(Locale.ROOT);
+            if (!storage.exists() && yamlStorage.exists()) {
+                try {
+                    int migrated = yamlStorage.migrateTo(storage);
+                    if (!virtualFurnaceAPI.isSilentStart())
+                        Util.log("Migrated: &b" + migrated + "&7 furnaces to " + type + " storage");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Util.error("&cFailed to migrate furnaces to " + type + " storage, YAML storage is used instead");
+                    return yamlStorage;
+                }
+            }
+            return storage;
+        }
+        if (!yamlStorage.exists()) {
             this.virtualFurnaceAPI.getJavaPlugin().saveResource("furnaces.yml", false);
         }
-        this.furnaceConfig = YamlConfiguration.loadConfiguration(this.furnaceFile);
-        loadFurnaces();
+        return yamlStorage;
     }
 
-
     public void clearFurnaceFile() {
-        furnaceFile.delete();
+        storage.delete();
+        journal.deleteAll();
     }
 
-    void loadFurnaces() {
-        ConfigurationSection section = this.furnaceConfig.getConfigurationSection("furnaces");
-        if (section != null) {
-            for (String string : section.getKeys(true)) {
-                if (section.get(string) instanceof Furnace) {
-                    Furnace furnace = ((Furnace) section.get(string));
-                    if (furnace == null)
-                        return;
-
-                    this.furnaceMap.put(UUID.fromString(string), furnace);
-                }
+    synchronized void loadFurnaces() {
+        long start = System.nanoTime();
+        Map<UUID, Furnace> furnaces = new LinkedHashMap<>();
+        if (this.lazyStorage != null) {
+            // Furnaces which were idle are read on access
+            for (Furnace furnace : this.lazyStorage.readAll(this.lazyStorage.getActiveIds())) {
+                furnaces.put(furnace.getUniqueID(), furnace);
+            }
+        } else {
+            for (Furnace furnace : this.storage.load()) {
+                furnaces.put(furnace.getUniqueID(), furnace);
+            }
+        }
+        long loaded = System.nanoTime();
+        Set<UUID> removed = new HashSet<>();
+        int replayed = this.journal.replay(furnaces, removed);
+        long replayedAt = System.nanoTime();
+        for (Furnace furnace : furnaces.values()) {
+            this.furnaceMap.put(furnace.getUniqueID(), furnace);
+            if (this.lazyStorage != null) touchFurnace(furnace);
+            furnace.clearUnjournaled();
+            // Loaded from the changes file or the journal, the storage has to keep a copy instead
+            if (furnace.clearDirty()) {
+                this.storage.save(furnace.snapshot());
             }
         }
-        if (!virtualFurnaceAPI.isSilentStart())
-            Util.log("Loaded: &b" + this.furnaceMap.size() + "&7 furnaces");
+        for (UUID uuid : removed) {
+            this.storage.remove(uuid);
+        }
+        long end = System.nanoTime();
+        if (!virtualFurnaceAPI.isSilentStart()) {
+            Util.log("Loaded: &b" + this.furnaceMap.size() + "&7 furnaces in &b" + TimeUnit.NANOSECONDS.toMillis(end - start) +
+                    "ms &7(storage: " + TimeUnit.NANOSECONDS.toMillis(loaded - start) +
+                    "ms, journal: " + TimeUnit.NANOSECONDS.toMillis(replayedAt - loaded) +
+                    "ms, setup: " + TimeUnit.NANOSECONDS.toMillis(end - replayedAt) + "ms)");
+            if (this.lazyStorage != null)
+                Util.log("Stored: &b" + this.lazyStorage.size() + "&7 furnaces, loaded on access");
+            if (replayed > 0)
+                Util.log("Replayed: &b" + replayed + "&7 journaled furnace changes");
+        }
     }
 
     /**
-     * Save a furnace to YAML storage
+     * Save a furnace to storage
      * <p><b>NOTE:</b> If choosing not to save to file, this change will not take effect
-     * in the YAML file, this may be useful for saving a large batch and saving file at the
+     * in the storage file, this may be useful for saving a large batch and saving file at the
      * end of the batch change, use {@link #saveConfig()} to save all changes to file</p>
      *
      * @param furnace    Furnace to save
      * @param saveToFile Whether to save to file
      */
     public void saveFurnace(@NotNull Furnace furnace, boolean saveToFile) {
-        this.furnaceConfig.set("furnaces." + furnace.getUniqueID(), furnace);
+        synchronized (this) {
+            // Cleared first, changes made while copying mark it dirty again
+            furnace.clearDirty();
+            this.storage.save(furnace.snapshot());
+        }
         if (saveToFile)
             saveConfig();
     }
 
     /**
-     * Remove a furnace from YAML storage
+     * Remove a furnace from storage
      * <p><b>NOTE:</b> If choosing not to save to file, this change will not take effect
-     * in the YAML file, this may be useful it removing a large batch and saving file at the
+     * in the storage file, this may be useful it removing a large batch and saving file at the
      * end of the batch change, use {@link #saveConfig()} to save all changes to file</p>
      *
      * @param furnace    Furnace to remove
      * @param saveToFile Whether to save changes to file
      */
     public void removeFurnaceFromConfig(@NotNull Furnace furnace, boolean saveToFile) {
-        this.furnaceConfig.set("furnaces." + furnace.getUniqueID(), null);
+        synchronized (this) {
+            this.storage.remove(furnace.getUniqueID());
+        }
         if (saveToFile)
             saveConfig();
     }
 
     /**
-     * Save all furnaces to file
+     * Save all furnaces which changed since they were last saved to file
+     * <p>Files are written on a separate thread, use {@link #saveAllAsync()} to know when they are written.</p>
      */
     public void saveAll() {
+        saveAllAsync();
+    }
+
+    /**
+     * Save all furnaces which changed since they were last saved to file
+     *
+     * @return Future completed once the furnaces are written to file
+     */
+    public CompletableFuture<Void> saveAllAsync() {
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        // Furnaces are copied in between ticks, with the ticks they skipped applied
+        return furnaceTick != null ? furnaceTick.settle(this::saveAllSettled) : saveAllSettled();
+    }
+
+    private CompletableFuture<Void> saveAllSettled() {
+        long segment;
+        synchronized (this) {
+            for (Furnace furnace : this.furnaceMap.values()) {
+                if (furnace.isDirty()) {
+                    saveFurnace(furnace, false);
+                }
+            }
+            segment = this.journal.checkpoint();
+        }
+        CompletableFuture<Void> future = saveConfigAsync();
+        // Once written, the storage has everything which was journaled so far
+        future.thenRun(() -> this.journal.delete(segment));
+        return future;
+    }
+
+    /**
+     * Journal the furnaces which changed since they were last journaled
+     * <p><b>Internal use only!</b> Called by the {@link FurnaceTick} in between saves,
+     * so changes aren't lost when the server stops without saving.</p>
+     */
+    public synchronized void journalChanges() {
         for (Furnace furnace : this.furnaceMap.values()) {
-            saveFurnace(furnace, false);
+            if (furnace.clearUnjournaled()) {
+                this.journal.put(furnace.snapshot());
+            }
         }
-        saveConfig();
+        this.journal.commit();
     }
 
     /**
-     * Save current furnace YAML from RAM to file
+     * Save the furnace storage from RAM to file
+     * <p>Only furnaces which were saved/removed since the last compaction are written.
+     * Once those make up a good part of all furnaces, the changes are {@link #compact() compacted}.</p>
+     * <p>Files are written on a separate thread, saves requested while an earlier one is
+     * waiting to be written are written together. Use {@link #saveConfigAsync()} to know when they are written.</p>
      */
     public void saveConfig() {
-        try {
-            furnaceConfig.save(furnaceFile);
-        } catch (ConcurrentModificationException ignore) {
-            // TODO figure out a proper way to handle this exception and figure out why its happening
-        } catch (IOException e) {
-            e.printStackTrace();
+        saveConfigAsync();
+    }
+
+    /**
+     * Save the furnace storage from RAM to file
+     * <p>Same as {@link #saveConfig()}.</p>
+     *
+     * @return Future completed once the furnaces are written to file
+     */
+    public CompletableFuture<Void> saveConfigAsync() {
+        // A damaged storage still has furnaces which couldn't be loaded, it isn't compacted
+        if (!this.storage.isDamaged() && this.storage.getChangeCount() > Math.max(COMPACT_MIN_CHANGES, this.furnaceMap.size() / 4)) {
+            return compactAsync();
+        }
+        return this.storageWriter.requestWrite();
+    }
+
+    /**
+     * Write all furnaces to the furnace file, and drop the changes saved since the last compaction
+     * <p>When furnaces are {@link #isLoadedOnAccess() loaded on access} they are written in place,
+     * so this only writes the changes</p>
+     * <p>Waits for a running tick to finish, so furnaces are copied with the ticks they skipped applied.
+     * The file is written on a separate thread, use {@link #compactAsync()} to know when it is written.</p>
+     */
+    public void compact() {
+        compactAsync();
+    }
+
+    /**
+     * Write all furnaces to the furnace file, and drop the changes saved since the last compaction
+     * <p>Same as {@link #compact()}.</p>
+     *
+     * @return Future completed once the furnaces are written to file
+     */
+    public CompletableFuture<Void> compactAsync() {
+        if (this.lazyStorage != null) {
+            return this.storageWriter.requestWrite();
+        }
+        FurnaceTick furnaceTick = this.virtualFurnaceAPI.getFurnaceTick();
+        // Never called while holding this manager's lock, the tick takes that lock while holding the tick guard
+        return furnaceTick != null ? furnaceTick.settle(this::compactSettled) : compactSettled();
+    }
+
+    private synchronized CompletableFuture<Void> compactSettled() {
+        List<Furnace> snapshots = new ArrayList<>(this.furnaceMap.size());
+        for (Furnace furnace : this.furnaceMap.values()) {
+            furnace.clearDirty();
+            snapshots.add(furnace.snapshot());
         }
+        this.storage.compact(snapshots);
+        long segment = this.journal.checkpoint();
+        CompletableFuture<Void> future = this.storageWriter.requestWrite();
+        future.thenRun(() -> this.journal.delete(segment));
+        return future;
     }
 
     void shutdown() {
         saveAll();
+        storageWriter.shutdown();
+        storage.close();
+        journal.shutdown();
         furnaceMap.clear();
+        synchronized (recentFurnaces) {
+            recentFurnaces.clear();
+        }
     }
 
 }
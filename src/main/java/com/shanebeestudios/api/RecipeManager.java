@@ -22,11 +22,23 @@ public class RecipeManager {
     private final Map<NamespacedKey, FurnaceRecipe> furnaceRecipeMap;
     private final Map<NamespacedKey, BrewingRecipe> brewingRecipeMap;
 
+    // Dense lookup tables, indexed by Material ordinal
+    private volatile FurnaceFuel[] furnaceFuelIndex;
+    private volatile BrewingFuel[] brewingFuelIndex;
+    private volatile FurnaceRecipe[] furnaceRecipeIndex;
+    private volatile BrewingRecipeTable brewingRecipeIndex;
+    private volatile int registryVersion;
+
     RecipeManager() {
-        this.furnaceFuelMap = new HashMap<>();
-        this.brewingFuelMap = new HashMap<>();
-        this.furnaceRecipeMap = new HashMap<>();
-        this.brewingRecipeMap = new HashMap<>();
+        this.furnaceFuelMap = new LinkedHashMap<>();
+        this.brewingFuelMap = new LinkedHashMap<>();
+        this.furnaceRecipeMap = new LinkedHashMap<>();
+        this.brewingRecipeMap = new LinkedHashMap<>();
+        int materialCount = Material.values().length;
+        this.furnaceFuelIndex = new FurnaceFuel[materialCount];
+        this.brewingFuelIndex = new BrewingFuel[materialCount];
+        this.furnaceRecipeIndex = new FurnaceRecipe[materialCount];
+        this.brewingRecipeIndex = new BrewingRecipeTable(64);
 
         registerFuels();
         registerRecipes();
@@ -41,15 +53,82 @@ public class RecipeManager {
     public boolean registerFurnaceFuel(FurnaceFuel fuel) {
         if (this.furnaceFuelMap.containsKey(fuel.getKey())) return false;
         this.furnaceFuelMap.put(fuel.getKey(), fuel);
+        FurnaceFuel[] index = this.furnaceFuelIndex;
+        indexFuel(index, fuel);
+        this.furnaceFuelIndex = index;
+        this.registryVersion++;
+        return true;
+    }
+
+    /**
+     * Unregister a {@link FurnaceFuel}
+     *
+     * @param key Key of Fuel to unregister
+     * @return true if fuel was unregistered
+     */
+    public boolean unregisterFurnaceFuel(NamespacedKey key) {
+        if (this.furnaceFuelMap.remove(key) == null) return false;
+        refreshFuelIndex();
         return true;
     }
 
     public boolean registerBrewingFuel(BrewingFuel fuel) {
         if (this.brewingFuelMap.containsKey(fuel.getKey())) return false;
         this.brewingFuelMap.put(fuel.getKey(), fuel);
+        BrewingFuel[] index = this.brewingFuelIndex;
+        indexFuel(index, fuel);
+        this.brewingFuelIndex = index;
+        this.registryVersion++;
         return true;
     }
 
+    public boolean unregisterBrewingFuel(NamespacedKey key) {
+        if (this.brewingFuelMap.remove(key) == null) return false;
+        refreshFuelIndex();
+        return true;
+    }
+
+    /**
+     * Rebuild the fuel lookup tables used by {@link #getFuelByMaterial(Material)}
+     * and {@link #getBrewingFuelByMaterial(Material)}
+     * <p>Tag based fuels are expanded into their materials when registered,
+     * so this should be called when the server's tags are reloaded
+     * or if the fuel maps were modified directly.</p>
+     */
+    public void refreshFuelIndex() {
+        FurnaceFuel[] furnaceIndex = new FurnaceFuel[this.furnaceFuelIndex.length];
+        for (FurnaceFuel fuel : this.furnaceFuelMap.values()) {
+            indexFuel(furnaceIndex, fuel);
+        }
+        BrewingFuel[] brewingIndex = new BrewingFuel[this.brewingFuelIndex.length];
+        for (BrewingFuel fuel : this.brewingFuelMap.values()) {
+            indexFuel(brewingIndex, fuel);
+        }
+        this.furnaceFuelIndex = furnaceIndex;
+        this.brewingFuelIndex = brewingIndex;
+        this.registryVersion++;
+    }
+
+    // A fuel registered for an exact material takes priority over a tag fuel containing that material,
+    // otherwise the first registered fuel wins
+    private static void indexFuel(Fuel[] index, Fuel fuel) {
+        ItemStack fuelItem = fuel.getFuelItem();
+        if (fuelItem != null) {
+            int ordinal = fuelItem.getType().ordinal();
+            Fuel current = index[ordinal];
+            if (current == null || current.getFuelItem() == null) {
+                index[ordinal] = fuel;
+            }
+        } else if (fuel.getTag() != null) {
+            for (Material material : fuel.getTag().getValues()) {
+                int ordinal = material.ordinal();
+                if (index[ordinal] == null) {
+                    index[ordinal] = fuel;
+                }
+            }
+        }
+    }
+
 
     // Register vanilla fuels in API to make furnace work.
     private void registerFuels() {
@@ -69,15 +148,88 @@ public class RecipeManager {
     public boolean registerFurnaceRecipe(FurnaceRecipe furnaceRecipe) {
         if (this.furnaceRecipeMap.containsKey(furnaceRecipe.getKey())) return false;
         this.furnaceRecipeMap.put(furnaceRecipe.getKey(), furnaceRecipe);
+
+        // First registered recipe for an ingredient wins, same as a rebuild would pick
+        FurnaceRecipe[] index = this.furnaceRecipeIndex;
+        int ordinal = furnaceRecipe.getIngredient().ordinal();
+        if (index[ordinal] == null) {
+            index[ordinal] = furnaceRecipe;
+        }
+        this.furnaceRecipeIndex = index;
+        this.registryVersion++;
         return true;
     }
 
+    /**
+     * Unregister a {@link FurnaceRecipe}
+     *
+     * @param key Key of FurnaceRecipe to unregister
+     * @return true if recipe was unregistered
+     */
+    public boolean unregisterFurnaceRecipe(NamespacedKey key) {
+        FurnaceRecipe furnaceRecipe = this.furnaceRecipeMap.remove(key);
+        if (furnaceRecipe == null) return false;
+        if (this.furnaceRecipeIndex[furnaceRecipe.getIngredient().ordinal()] == furnaceRecipe) {
+            rebuildFurnaceRecipeIndex();
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the ingredient lookup table used by {@link #getByIngredient(Material)}
+     * <p>This is done automatically when registering/unregistering recipes,
+     * it only needs to be called if the map from {@link #getFurnaceRecipes()} was modified directly</p>
+     */
+    public void rebuildFurnaceRecipeIndex() {
+        FurnaceRecipe[] index = new FurnaceRecipe[this.furnaceRecipeIndex.length];
+        for (FurnaceRecipe furnaceRecipe : this.furnaceRecipeMap.values()) {
+            int ordinal = furnaceRecipe.getIngredient().ordinal();
+            if (index[ordinal] == null) {
+                index[ordinal] = furnaceRecipe;
+            }
+        }
+        this.furnaceRecipeIndex = index;
+        this.registryVersion++;
+    }
+
     public boolean registerBrewingRecipe(BrewingRecipe brewingRecipe) {
         if (this.brewingRecipeMap.containsKey(brewingRecipe.getKey())) return false;
         this.brewingRecipeMap.put(brewingRecipe.getKey(), brewingRecipe);
+        BrewingRecipeTable index = this.brewingRecipeIndex;
+        if (index.isFull()) {
+            index = index.grow();
+        }
+        if (!index.putIfAbsent(brewingRecipe)) {
+            Util.log("Brewing recipe &b" + brewingRecipe.getKey() + "&7 has the same ingredient and bottle as another recipe, it won't be used");
+        }
+        this.brewingRecipeIndex = index;
+        this.registryVersion++;
+        return true;
+    }
+
+    public boolean unregisterBrewingRecipe(NamespacedKey key) {
+        BrewingRecipe brewingRecipe = this.brewingRecipeMap.remove(key);
+        if (brewingRecipe == null) return false;
+        if (this.brewingRecipeIndex.get(brewingRecipe.getMatchKey(), brewingRecipe.getIngredient(), brewingRecipe.getInputBottle()) == brewingRecipe) {
+            rebuildBrewingRecipeIndex();
+        }
         return true;
     }
 
+    /**
+     * Rebuild the lookup table used by {@link #getBrewingRecipeByIngredient(ItemStack, ItemStack)}
+     * <p>This is done automatically when registering/unregistering recipes,
+     * it only needs to be called if the map from {@link #getBrewingRecipes()} was modified directly</p>
+     */
+    public void rebuildBrewingRecipeIndex() {
+        BrewingRecipeTable index = new BrewingRecipeTable(this.brewingRecipeMap.size() * 2);
+        for (BrewingRecipe brewingRecipe : this.brewingRecipeMap.values()) {
+            index.putIfAbsent(brewingRecipe);
+        }
+        this.brewingRecipeIndex = index;
+        this.registryVersion++;
+    }
+
     // Register vanilla furnace recipes.
     private void registerRecipes() {
         for (FurnaceRecipe recipe : FurnaceRecipe.getVanillaFurnaceRecipes())
@@ -91,8 +243,21 @@ public class RecipeManager {
             Util.log("Registered all furnace recipes.");
     }
 
+    /**
+     * Get the current version of the recipe/fuel registry
+     * <p>This changes every time a recipe or fuel is registered/unregistered,
+     * or a lookup table is rebuilt. Machines use it to know when their cached
+     * recipe and fuel have to be resolved again.</p>
+     *
+     * @return Current registry version
+     */
+    public int getRegistryVersion() {
+        return this.registryVersion;
+    }
+
     /**
      * Get a map of all {@link FurnaceFuel}s
+     * <p><b>NOTE:</b> If this map is modified directly, {@link #refreshFuelIndex()} has to be called afterwards</p>
      *
      * @return Map of Fuels
      */
@@ -107,6 +272,7 @@ public class RecipeManager {
 
     /**
      * Get a map of all {@link FurnaceRecipe}s
+     * <p><b>NOTE:</b> If this map is modified directly, {@link #rebuildFurnaceRecipeIndex()} has to be called afterwards</p>
      *
      * @return Map of FurnaceRecipes
      */
@@ -120,27 +286,21 @@ public class RecipeManager {
 
     /**
      * Get a {@link FurnaceFuel} by material
+     * <p>If a material matches a fuel registered for that exact material
+     * as well as a tag fuel, the exact material fuel is returned</p>
      *
      * @param material Material of Fuel to grab
      * @return Fuel from recipe
      */
     public FurnaceFuel getFuelByMaterial(Material material) {
-        for (FurnaceFuel fuel : this.furnaceFuelMap.values()) {
-            if (fuel.matchFuel(material)) {
-                return fuel;
-            }
-        }
-        return null;
+        if (material == null) return null;
+        return this.furnaceFuelIndex[material.ordinal()];
     }
 
 
     public BrewingFuel getBrewingFuelByMaterial(Material material) {
-        for (BrewingFuel fuel : this.brewingFuelMap.values()) {
-            if (fuel.matchFuel(material)) {
-                return fuel;
-            }
-        }
-        return null;
+        if (material == null) return null;
+        return this.brewingFuelIndex[material.ordinal()];
     }
 
     /**
@@ -164,23 +324,21 @@ public class RecipeManager {
      * @return FurnaceRecipe from ingredient
      */
     public FurnaceRecipe getByIngredient(Material ingredient) {
-        for (FurnaceRecipe recipe : this.furnaceRecipeMap.values()) {
-            if (recipe.getIngredient() == ingredient) {
-                return recipe;
-            }
-        }
-        return null;
+        if (ingredient == null) return null;
+        return this.furnaceRecipeIndex[ingredient.ordinal()];
     }
 
+    /**
+     * Get a {@link BrewingRecipe} by ingredient and input bottle
+     * <p>The amount of either ItemStack is ignored</p>
+     *
+     * @param ingredient Ingredient of BrewingRecipe
+     * @param bottle     Input bottle of BrewingRecipe
+     * @return BrewingRecipe from ingredient and bottle
+     */
     public BrewingRecipe getBrewingRecipeByIngredient(ItemStack ingredient, ItemStack bottle) {
-        for (BrewingRecipe recipe : this.brewingRecipeMap.values()) {
-            ItemStack checkItem = ingredient.clone();
-            checkItem.setAmount(1);
-            if (recipe.getIngredient().equals(checkItem) && recipe.getInputBottle().isSimilar(bottle)) {
-                return recipe;
-            }
-        }
-        return null;
+        if (ingredient == null || bottle == null) return null;
+        return this.brewingRecipeIndex.get(BrewingRecipe.getMatchKey(ingredient, bottle), ingredient, bottle);
     }
 
     /**
@@ -197,4 +355,71 @@ public class RecipeManager {
         return this.brewingRecipeMap.get(key);
     }
 
+    // Open addressing hash table of brewing recipes keyed by their match key
+    // Match keys are hashes, so recipes with the same key are stored side by side and told apart by their items
+    private static final class BrewingRecipeTable {
+
+        private final long[] keys;
+        private final BrewingRecipe[] recipes;
+        private final int mask;
+        private int size;
+
+        private BrewingRecipeTable(int capacity) {
+            int length = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+            this.keys = new long[length];
+            this.recipes = new BrewingRecipe[length];
+            this.mask = length - 1;
+        }
+
+        private boolean isFull() {
+            return this.size * 2 >= this.recipes.length;
+        }
+
+        private BrewingRecipeTable grow() {
+            BrewingRecipeTable table = new BrewingRecipeTable(this.recipes.length * 2);
+            for (BrewingRecipe recipe : this.recipes) {
+                if (recipe != null) {
+                    table.putIfAbsent(recipe);
+                }
+            }
+            return table;
+        }
+
+        // Returns false if a recipe with the same ingredient and bottle is already stored
+        private boolean putIfAbsent(BrewingRecipe recipe) {
+            long key = recipe.getMatchKey();
+            int slot = slot(key);
+            BrewingRecipe stored;
+            while ((stored = this.recipes[slot]) != null) {
+                if (this.keys[slot] == key && matches(stored, recipe.getIngredient(), recipe.getInputBottle())) return false;
+                slot = (slot + 1) & this.mask;
+            }
+            this.keys[slot] = key;
+            this.recipes[slot] = recipe;
+            this.size++;
+            return true;
+        }
+
+        private BrewingRecipe get(long key, ItemStack ingredient, ItemStack bottle) {
+            int slot = slot(key);
+            BrewingRecipe recipe;
+            while ((recipe = this.recipes[slot]) != null) {
+                if (this.keys[slot] == key && matches(recipe, ingredient, bottle)) return recipe;
+                slot = (slot + 1) & this.mask;
+            }
+            return null;
+        }
+
+        // isSimilar ignores the amount, same as the match key
+        private static boolean matches(BrewingRecipe recipe, ItemStack ingredient, ItemStack bottle) {
+            return recipe.getIngredient().isSimilar(ingredient) && recipe.getInputBottle().isSimilar(bottle);
+        }
+
+        private int slot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & this.mask;
+        }
+
+    }
+
 }
@@ -2,7 +2,8 @@ package com.shanebeestudios.api;
 
 import com.shanebeestudios.api.machine.*;
 import com.shanebeestudios.api.property.*;
-import com.shanebeestudios.api.task.FurnaceTick;
+import com.shanebeestudios.api.storage.StorageType;
+import com.shanebeestudios.api.task.*;
 import com.shanebeestudios.api.tile.FurnaceTile;
 import com.shanebeestudios.api.util.Util;
 import org.bukkit.Bukkit;
@@ -32,6 +33,7 @@ public class VirtualFurnaceAPI {
 
     private final String apiVersion;
     private final JavaPlugin plugin;
+    private final StorageType storageType;
     private boolean enabled = true;
     private boolean silentStart = false;
     private boolean clearDataFileOnDisable = false;
@@ -40,41 +42,37 @@ public class VirtualFurnaceAPI {
     private BrewingManager brewingManager;
     // private TileManager tileManager;
     private FurnaceTick furnaceTick;
+    private ViewTick viewTick;
 
     public VirtualFurnaceAPI(@NotNull JavaPlugin javaPlugin, boolean silentStart, boolean disableMetrics, boolean clearDataFileOnDisable) {
-        this(javaPlugin, silentStart, disableMetrics);
-
-        this.clearDataFileOnDisable = clearDataFileOnDisable;
-    }
-
-    /**
-     * Create a new instance of the VirtualFurnaceAPI
-     *
-     * @param javaPlugin Your plugin
-     */
-    public VirtualFurnaceAPI(JavaPlugin javaPlugin, boolean silentStart) {
-        this(javaPlugin, silentStart, false);
+        this(javaPlugin, silentStart, disableMetrics, clearDataFileOnDisable, StorageType.YAML);
     }
 
     /**
      * Create a new instance of the VirtualFurnaceAPI
-     * <p>If you plan on using bStats metrics in your plugin,
-     * disable the bStats metrics for the API to prevent conflict.</p>
+     * <p>Machines are saved in the given type of storage.
+     * When using {@link StorageType#BINARY binary storage}, existing YAML files are migrated once.</p>
      *
-     * @param javaPlugin     Your plugin
-     * @param disableMetrics Disable metrics for VirtualFurnaceAPI (If you are using metrics in your own plugin)
+     * @param javaPlugin             Your plugin
+     * @param disableMetrics         Disable metrics for VirtualFurnaceAPI (If you are using metrics in your own plugin)
+     * @param clearDataFileOnDisable Whether to delete the data files when disabling the API
+     * @param storageType            Type of storage to save machines in
      */
-    public VirtualFurnaceAPI(@NotNull JavaPlugin javaPlugin, boolean silentStart, boolean disableMetrics) {
+    public VirtualFurnaceAPI(@NotNull JavaPlugin javaPlugin, boolean silentStart, boolean disableMetrics, boolean clearDataFileOnDisable,
+                             @NotNull StorageType storageType) {
         instance = this;
         this.plugin = javaPlugin;
         this.apiVersion = getVersion();
         this.silentStart = silentStart;
+        this.clearDataFileOnDisable = clearDataFileOnDisable;
+        this.storageType = storageType;
         if (!Util.classExists("org.bukkit.persistence.PersistentDataHolder")) {
             this.recipeManager = null;
             this.furnaceManager = null;
             this.brewingManager = null;
             //this.tileManager = null;
             this.furnaceTick = null;
+            this.viewTick = null;
             //this.tileTick = null;
             Util.error("&cFailed to initialize VirtualFurnaceAPI");
             Util.error("&7  - Bukkit version: &b" + Bukkit.getBukkitVersion() + " &7is not supported!");
@@ -93,6 +91,8 @@ public class VirtualFurnaceAPI {
         //this.tileManager.load();
         this.furnaceTick = new FurnaceTick(this);
         this.furnaceTick.start();
+        this.viewTick = new ViewTick(this);
+        this.viewTick.start();
         //this.tileTick = new TileTick(this);
         //this.tileTick.start();
         Bukkit.getPluginManager().registerEvents(new FurnaceListener(this), javaPlugin);
@@ -101,6 +101,27 @@ public class VirtualFurnaceAPI {
         }
 
     }
+
+    /**
+     * Create a new instance of the VirtualFurnaceAPI
+     *
+     * @param javaPlugin Your plugin
+     */
+    public VirtualFurnaceAPI(JavaPlugin javaPlugin, boolean silentStart) {
+        this(javaPlugin, silentStart, false);
+    }
+
+    /**
+     * Create a new instance of the VirtualFurnaceAPI
+     * <p>If you plan on using bStats metrics in your plugin,
+     * disable the bStats metrics for the API to prevent conflict.</p>
+     *
+     * @param javaPlugin     Your plugin
+     * @param disableMetrics Disable metrics for VirtualFurnaceAPI (If you are using metrics in your own plugin)
+     */
+    public VirtualFurnaceAPI(@NotNull JavaPlugin javaPlugin, boolean silentStart, boolean disableMetrics) {
+        this(javaPlugin, silentStart, disableMetrics, false);
+    }
     //private TileTick tileTick;
 
     /**
@@ -121,6 +142,15 @@ public class VirtualFurnaceAPI {
         return clearDataFileOnDisable;
     }
 
+    /**
+     * Get the type of storage machines are saved in
+     *
+     * @return Type of storage
+     */
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
     public BrewingManager getBrewingManager() {
         return brewingManager;
     }
@@ -131,9 +161,13 @@ public class VirtualFurnaceAPI {
      * This should be used in a plugin's {@link Plugin#onDisable() onDisable()} method</p>
      */
     public void disableAPI(boolean silentStop) {
+        // Waits for a running tick, so settling and saving doesn't race it
         this.furnaceTick.cancel();
+        this.furnaceTick.settle();
+        this.viewTick.cancel();
         //this.tileTick.cancel();
         this.furnaceTick = null;
+        this.viewTick = null;
         //this.tileTick = null;
         this.furnaceManager.shutdown();
         this.brewingManager.shutdown();
@@ -198,6 +232,15 @@ public class VirtualFurnaceAPI {
         return furnaceTick;
     }
 
+    /**
+     * Get an instance of the view tick class
+     *
+     * @return Instance of view tick
+     */
+    public ViewTick getViewTick() {
+        return viewTick;
+    }
+
     /**
      * Get the version of this API
      *
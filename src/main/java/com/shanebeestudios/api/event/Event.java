@@ -1,6 +1,7 @@
 package com.shanebeestudios.api.event;
 
 import org.bukkit.Bukkit;
+import org.bukkit.event.HandlerList;
 
 /**
  * Abstract event class for easy event calls
@@ -20,4 +21,16 @@ public abstract class Event extends org.bukkit.event.Event {
         Bukkit.getPluginManager().callEvent(this);
     }
 
+    /**
+     * Check whether any listeners are registered to a HandlerList
+     * <p>Bukkit caches the registered listeners until a listener is registered or unregistered,
+     * so this is cheap enough to check before creating an event which is called very often</p>
+     *
+     * @param handlerList HandlerList of the event
+     * @return True if any listeners are registered
+     */
+    public static boolean hasListeners(HandlerList handlerList) {
+        return handlerList.getRegisteredListeners().length > 0;
+    }
+
 }
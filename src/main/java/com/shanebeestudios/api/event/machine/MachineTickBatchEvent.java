@@ -0,0 +1,127 @@
+package com.shanebeestudios.api.event.machine;
+
+import com.shanebeestudios.api.event.Event;
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.task.FurnaceTick;
+import org.bukkit.event.HandlerList;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Called with everything that happened in {@link Machine Machines} over one or more ticks
+ * <p>This event is only called when enabled with {@link FurnaceTick#setEventBatchWindow(int)}.
+ * Each entry is a machine, what happened in it and a value belonging to that.
+ * Entries are in the order they happened in each machine.</p>
+ * <p>Ticks which are {@link FurnaceTick#setFastForward(boolean) fast forwarded} have no entries.</p>
+ */
+public class MachineTickBatchEvent extends Event {
+
+    private static final HandlerList handlerList = new HandlerList();
+
+    private final Machine[] machines;
+    private final byte[] kinds;
+    private final int[] values;
+    private final int size;
+
+    public MachineTickBatchEvent(@NotNull Machine[] machines, @NotNull byte[] kinds, @NotNull int[] values, int size) {
+        super(true);
+        this.machines = machines;
+        this.kinds = kinds;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Get the amount of entries in this batch
+     *
+     * @return Amount of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the machine of an entry
+     *
+     * @param index Index of the entry
+     * @return Machine of the entry
+     */
+    public Machine getMachine(int index) {
+        checkIndex(index);
+        return machines[index];
+    }
+
+    /**
+     * Get what happened in an entry
+     *
+     * @param index Index of the entry
+     * @return Kind of the entry
+     */
+    public Kind getKind(int index) {
+        checkIndex(index);
+        return Kind.VALUES[kinds[index]];
+    }
+
+    /**
+     * Get the value of an entry
+     * <p>What the value means depends on the {@link #getKind(int) kind} of the entry</p>
+     *
+     * @param index Index of the entry
+     * @return Value of the entry
+     */
+    public int getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    @Override
+    public @NotNull HandlerList getHandlers() {
+        return handlerList;
+    }
+
+    public static HandlerList getHandlerList() {
+        return handlerList;
+    }
+
+    /**
+     * What happened in a machine
+     */
+    public enum Kind {
+        /**
+         * Fuel started burning in a furnace, the value is the burn time
+         */
+        FURNACE_IGNITE,
+        /**
+         * Fuel burned in a furnace, the value is the fuel time left
+         */
+        FURNACE_BURNING,
+        /**
+         * An item cooked in a furnace, the value is the cook time
+         */
+        FURNACE_COOKING,
+        /**
+         * An item finished cooking in a furnace, the value is the amount in the output slot
+         */
+        FURNACE_COOK_FINISH,
+        /**
+         * Fuel was used up by a brewing stand, the value is the fuel time
+         */
+        BREWING_FUEL,
+        /**
+         * A brewing stand is brewing, the value is the brew time left
+         */
+        BREWING,
+        /**
+         * A brewing stand finished brewing, the value is the amount of bottles brewed
+         */
+        BREWING_FINISH;
+
+        private static final Kind[] VALUES = values();
+    }
+
+}
@@ -1,21 +1,31 @@
 package com.shanebeestudios.api.machine;
 
 import com.shanebeestudios.api.*;
+import com.shanebeestudios.api.event.machine.MachineTickBatchEvent;
 import com.shanebeestudios.api.property.*;
 import com.shanebeestudios.api.recipe.*;
+import com.shanebeestudios.api.storage.*;
+import com.shanebeestudios.api.util.Util;
 import org.bukkit.*;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.entity.*;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.*;
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.*;
 
+import java.io.IOException;
 import java.util.*;
 
 public class BrewingStand extends Machine implements PropertyHolder<BrewingProperties>, InventoryHolder, ConfigurationSerializable {
 
+    private static final InventoryView.Property[] VIEW_PROPERTIES = {
+            InventoryView.Property.BREW_TIME,
+            InventoryView.Property.FUEL_TIME
+    };
+
     private final RecipeManager recManager;
-    private final Inventory inv;
+    // Only created while the inventory is used, see getInventory()
+    private volatile Inventory inv;
     private final ItemStack[] potionBottles;
     private final BrewingProperties properties;
 
@@ -28,14 +38,27 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
     private int max = 0;
     private int brewTime = 0;
     private int speed = 1;
+    // Whether the slots changed since they were last published to the inventory
+    private boolean slotsChanged;
+    // Fuel bar shown in the view, calculated again only when the fuel time changes
+    private int fuelBar;
+    private int fuelBarTime = -1;
+    private int fuelBarMax = -1;
+
+    // Cached lookups, the recipe is resolved again once a slot changes or the registry version changes
+    private BrewingRecipe recipe;
+    private boolean recipeValid;
+    private int recipeVersion = -1;
+    private Material fuelType;
+    private BrewingFuel brewingFuel;
+    private int fuelVersion = -1;
+    private int fastForwardSpeed;
 
     public BrewingStand(String name, BrewingProperties properties) {
         super(UUID.randomUUID(), name);
         this.properties = properties;
         this.recManager = VirtualFurnaceAPI.getInstance().getRecipeManager();
-        this.inv = Bukkit.createInventory(this, InventoryType.BREWING, name);
         this.potionBottles = new ItemStack[3];
-        this.updateInventory();
     }
 
     private BrewingStand(UUID uuid, String name, BrewingProperties properties, int brewTime, int maxBrews, int fuelTime, ItemStack fuel, ItemStack ingredient, ItemStack[] bottles) {
@@ -48,8 +71,6 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         this.fuel = fuel;
         this.ingredient = ingredient;
         this.potionBottles = bottles;
-        this.inv = Bukkit.createInventory(this, InventoryType.BREWING, name);
-        this.updateInventory();
         this.updateBrewSpeed();
     }
 
@@ -69,15 +90,36 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         return new BrewingStand(uuid, name, prop, brewTime, maxBrews, fuelTime, fuel, ing, bottles);
     }
 
+    public static BrewingStand readBinary(@NotNull BinaryInput in) throws IOException {
+        UUID uuid = in.readUUID();
+        String name = in.readUTF();
+        BrewingProperties prop = BrewingProperties.readBinary(in);
+        int brewTime = in.readInt();
+        int fuelTime = in.readInt();
+        int maxBrews = in.readInt();
+        ItemStack fuel = in.readItem();
+        ItemStack ing = in.readItem();
+        ItemStack[] bottles = new ItemStack[3];
+        for (int i = 0; i < bottles.length; i++) {
+            bottles[i] = in.readItem();
+        }
+        return new BrewingStand(uuid, name, prop, brewTime, maxBrews, fuelTime, fuel, ing, bottles);
+    }
+
     public RecipeManager getRecManager() {
         return recManager;
     }
 
     public Inventory getInv() {
-        return inv;
+        return getInventory();
     }
 
     public ItemStack[] getPotionBottles() {
+        // The returned array may be modified
+        this.recipeValid = false;
+        this.slotsChanged = true;
+        markDirty();
+        wake();
         return potionBottles;
     }
 
@@ -87,6 +129,9 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     public void setFuel(ItemStack fuel) {
         this.fuel = fuel;
+        this.slotsChanged = true;
+        markDirty();
+        wake();
     }
 
     public ItemStack getIngredient() {
@@ -94,7 +139,13 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
     }
 
     public void setIngredient(ItemStack ingredient) {
+        if (changed(this.ingredient, ingredient)) {
+            this.recipeValid = false;
+        }
         this.ingredient = ingredient;
+        this.slotsChanged = true;
+        markDirty();
+        wake();
     }
 
     public int getFuelTime() {
@@ -103,6 +154,8 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     public void setFuelTime(int fuelTime) {
         this.fuelTime = fuelTime;
+        markDirty();
+        wake();
     }
 
     public int getMax() {
@@ -111,6 +164,8 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     public void setMax(int max) {
         this.max = max;
+        markDirty();
+        wake();
     }
 
     public int getBrewTime() {
@@ -119,6 +174,8 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     public void setBrewTime(int brewTime) {
         this.brewTime = brewTime;
+        markDirty();
+        wake();
     }
 
     public int getSpeed() {
@@ -127,43 +184,75 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     public void setSpeed(int speed) {
         this.speed = speed;
+        markDirty();
+        wake();
     }
 
     @Override
     public void openInventory(Player player) {
-        updateInventory();
+        // Inventories with viewers are kept up to date by the view tick
+        Inventory inv = this.inv;
+        if (inv == null || !isViewed()) {
+            inv = updateInventory();
+        }
         player.openInventory(inv);
+        wake();
     }
 
-    private void updateInventory() {
-        this.inv.setItem(0, potionBottles[0]);
-        this.inv.setItem(1, potionBottles[1]);
-        this.inv.setItem(2, potionBottles[2]);
-        this.inv.setItem(3, ingredient);
-        this.inv.setItem(4, fuel);
+    // Write the slots to the inventory, creating it if needed
+    private Inventory updateInventory() {
+        Inventory inv = this.inv;
+        if (inv == null) {
+            inv = Bukkit.createInventory(this, InventoryType.BREWING, getName());
+            this.inv = inv;
+        }
+        inv.setItem(0, potionBottles[0]);
+        inv.setItem(1, potionBottles[1]);
+        inv.setItem(2, potionBottles[2]);
+        inv.setItem(3, ingredient);
+        inv.setItem(4, fuel);
+        return inv;
     }
 
+    // The inventory is only created when needed and released again once nobody views it
     @Override
     public @NotNull Inventory getInventory() {
+        Inventory inv = this.inv;
+        if (inv == null || !isViewed()) {
+            // Inventories without viewers aren't kept up to date
+            inv = updateInventory();
+            trackInventory(Util.copyItems(potionBottles[0], potionBottles[1], potionBottles[2], ingredient, fuel));
+        }
+        wake();
+        return inv;
+    }
+
+    @Override
+    public @Nullable Inventory getViewInventory() {
         return this.inv;
     }
 
+    @Override
+    public void releaseInventory() {
+        Inventory inv = this.inv;
+        if (inv != null && !isViewed() && inv.getViewers().isEmpty()) {
+            this.inv = null;
+        }
+    }
+
     @Override
     public BrewingProperties getProperties() {
         return this.properties;
     }
 
     void processBrew() {
-        BrewingRecipe recipe = null;
-        for (int i = 2; i >= 0; i--) {
-            BrewingRecipe recipe1 = recManager.getBrewingRecipeByIngredient(ingredient, potionBottles[i]);
-            if (recipe1 != null)
-                recipe = recipe1;
-        }
+        BrewingRecipe recipe = getRecipe();
         if (recipe == null) return;
+        int brewed = 0;
         for (int i = 0; i <= 2; i++) {
             if (match(potionBottles[i], recipe.getInputBottle())) {
                 potionBottles[i] = recipe.getOutputBottle().clone();
+                brewed++;
             }
         }
         if (fuelTime > 0) fuelTime--;
@@ -171,12 +260,21 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
             ingredient.setAmount(ingredient.getAmount() - 1);
         } else
             ingredient = null;
+        recipeValid = false;
         brewTime = 0;
-        updateInventory();
-
-        for (HumanEntity viewer : inv.getViewers()) {
-            Player player = (Player) viewer;
-            player.playSound(player.getLocation(), Sound.BLOCK_BREWING_STAND_BREW, 1, 1);
+        slotsChanged = true;
+        recordTickEvent(MachineTickBatchEvent.Kind.BREWING_FINISH, brewed);
+
+        if (isViewed()) {
+            // Sounds are played on the main thread
+            Bukkit.getScheduler().runTask(VirtualFurnaceAPI.getInstance().getJavaPlugin(), () -> {
+                Inventory inv = this.inv;
+                if (inv == null) return;
+                for (HumanEntity viewer : inv.getViewers()) {
+                    Player player = (Player) viewer;
+                    player.playSound(player.getLocation(), Sound.BLOCK_BREWING_STAND_BREW, 1, 1);
+                }
+            });
         }
         // TODO: This is where the sound would play on completion
     }
@@ -186,8 +284,13 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         return one.equals(two);
     }
 
+    private boolean changed(ItemStack one, ItemStack two) {
+        if (one == null) return two != null;
+        return !one.equals(two);
+    }
+
     void processFuel() {
-        BrewingFuel fuel = recManager.getBrewingFuelByMaterial(this.fuel.getType());
+        BrewingFuel fuel = getBrewingFuel();
         fuelTime = (int) (fuel.getDuration() * properties.getFuelTimeMultiplier());
         max = fuelTime;
         if (this.fuel.getAmount() > 1) {
@@ -195,14 +298,55 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         } else
             this.fuel = null;
 
-        updateInventory();
+        slotsChanged = true;
+        recordTickEvent(MachineTickBatchEvent.Kind.BREWING_FUEL, fuelTime);
+    }
+
+    @Override
+    public boolean isIdle() {
+        if (isViewed()) return false;
+        if (fuelTime > 0) {
+            return brewTime <= 0 && !canBrew();
+        }
+        return !canBurn();
+    }
+
+    @Override
+    public int getFastForwardTicks() {
+        fastForwardSpeed = 0;
+        if (isViewed()) return 0;
+        if (fuelTime > 0 && brewTime > 0 && ingredient != null && speed > 0) {
+            // Stop before the tick which finishes the brew
+            fastForwardSpeed = speed;
+            return (brewTime - 1) / speed;
+        }
+        return 0;
+    }
+
+    @Override
+    public void fastForward(int ticks) {
+        if (ticks > 0) {
+            markDirty();
+            brewTime -= fastForwardSpeed * ticks;
+        }
     }
 
     boolean canBrew() {
         return getRecipe() != null;
     }
 
+    // Get the recipe for the current ingredient/bottles, only looked up when a slot or the registry changed
     private BrewingRecipe getRecipe() {
+        int version = recManager.getRegistryVersion();
+        if (!recipeValid || version != recipeVersion) {
+            recipe = findRecipe();
+            recipeValid = true;
+            recipeVersion = version;
+        }
+        return recipe;
+    }
+
+    private BrewingRecipe findRecipe() {
         if (ingredient == null) return null;
 
         BrewingRecipe recipe;
@@ -217,6 +361,18 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         return null;
     }
 
+    // Get the fuel for the current fuel item, only looked up when the fuel type or registry changed
+    private BrewingFuel getBrewingFuel() {
+        Material type = fuel != null ? fuel.getType() : null;
+        int version = recManager.getRegistryVersion();
+        if (type != fuelType || version != fuelVersion) {
+            brewingFuel = recManager.getBrewingFuelByMaterial(type);
+            fuelType = type;
+            fuelVersion = version;
+        }
+        return brewingFuel;
+    }
+
     private void updateBrewSpeed() {
         BrewingRecipe recipe = getRecipe();
         if (recipe != null) {
@@ -226,21 +382,26 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
 
     @Override
     public void tick() {
+        pickUpInventory();
         try {
             if (fuelTime > 0) {
                 if (brewTime > 0) {
                     if (ingredient != null) {
                         brewTime -= speed;
+                        markDirty();
+                        recordTickEvent(MachineTickBatchEvent.Kind.BREWING, brewTime);
                         if (brewTime <= 0) {
                             processBrew();
                         }
                     } else brewTime = 0;
                 } else if (canBrew()) {
                     brewTime = 400;
+                    markDirty();
                     updateBrewSpeed();
                 }
             } else if (canBurn()) {
                 processFuel();
+                markDirty();
             }
             updateInventoryView();
         } catch (AssertionError error) {
@@ -248,40 +409,70 @@ public class BrewingStand extends Machine implements PropertyHolder<BrewingPrope
         }
     }
 
-    private void updateInventoryView() {
-        ItemStack bottle1 = this.inv.getItem(0), bottle2 = this.inv.getItem(1), bottle3 = this.inv.getItem(2);
-        ItemStack ingred = this.inv.getItem(3);
-        ItemStack f = this.inv.getItem(4);
-
-        if (!match(this.potionBottles[0], bottle1)) {
-            this.potionBottles[0] = bottle1;
-        }
-        if (!match(this.potionBottles[1], bottle2)) {
-            this.potionBottles[1] = bottle2;
-        }
-        if (!match(this.potionBottles[2], bottle3)) {
-            this.potionBottles[2] = bottle3;
+    // Pick up changes players made to the inventory
+    private void pickUpInventory() {
+        ItemStack[] slots = pickUpSlots();
+        if (slots == null) return;
+        markDirty();
+        for (int i = 0; i <= 2; i++) {
+            if (changed(this.potionBottles[i], slots[i])) {
+                this.potionBottles[i] = slots[i];
+                this.recipeValid = false;
+            }
         }
-        if (!match(this.ingredient, ingred)) {
-            this.ingredient = ingred;
+        if (changed(this.ingredient, slots[3])) {
+            this.ingredient = slots[3];
+            this.recipeValid = false;
         }
-        if (!match(this.fuel, f)) {
-            this.fuel = f;
+        this.fuel = slots[4];
+    }
+
+    // Publish the state of this brewing stand to its viewers, the view tick applies it on the main thread
+    private void updateInventoryView() {
+        if (!isViewed()) return;
+        int[] values = {brewTime, getFuelBar()};
+        ItemStack[] slots = null;
+        if (slotsChanged) {
+            slots = Util.copyItems(potionBottles[0], potionBottles[1], potionBottles[2], ingredient, fuel);
+            slotsChanged = false;
         }
+        publishView(VIEW_PROPERTIES, values, slots);
+    }
 
-        inv.getViewers().forEach((viewer) -> {
-            try {
-                InventoryView view = viewer.getOpenInventory();
-                view.setProperty(InventoryView.Property.BREW_TIME, brewTime);
-                view.setProperty(InventoryView.Property.FUEL_TIME, (int) Math.round(((double) fuelTime) / ((double) (max / 20))));
-            } catch (final Exception ignored) {
-            }
-        });
+    private int getFuelBar() {
+        if (fuelTime != fuelBarTime || max != fuelBarMax) {
+            int step = max / 20;
+            fuelBar = step > 0 ? (int) Math.round(((double) fuelTime) / step) : 0;
+            fuelBarTime = fuelTime;
+            fuelBarMax = max;
+        }
+        return fuelBar;
     }
 
     private boolean canBurn() {
         if (this.fuel == null) return false;
-        return this.recManager.getBrewingFuelByMaterial(this.fuel.getType()) != null;
+        return getBrewingFuel() != null;
+    }
+
+    // Copy which isn't ticked, used to save this stand off the calling thread
+    public @NotNull BrewingStand snapshot() {
+        ItemStack[] items = Util.copyItems(this.fuel, this.ingredient);
+        return new BrewingStand(getUniqueID(), getName(), this.properties, this.brewTime, this.max, this.fuelTime,
+                items[0], items[1], Util.copyItems(this.potionBottles));
+    }
+
+    public void writeBinary(@NotNull BinaryOutput out) throws IOException {
+        out.writeUUID(this.getUniqueID());
+        out.writeUTF(this.getName());
+        this.properties.writeBinary(out);
+        out.writeInt(this.brewTime);
+        out.writeInt(this.fuelTime);
+        out.writeInt(this.max);
+        out.writeItem(this.fuel);
+        out.writeItem(this.ingredient);
+        for (ItemStack bottle : this.potionBottles) {
+            out.writeItem(bottle);
+        }
     }
 
     @Override
@@ -1,18 +1,21 @@
 package com.shanebeestudios.api.machine;
 
 import com.shanebeestudios.api.*;
+import com.shanebeestudios.api.event.Event;
 import com.shanebeestudios.api.event.machine.*;
 import com.shanebeestudios.api.property.*;
 import com.shanebeestudios.api.recipe.FurnaceRecipe;
 import com.shanebeestudios.api.recipe.*;
+import com.shanebeestudios.api.storage.*;
 import com.shanebeestudios.api.util.Util;
 import org.bukkit.*;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.bukkit.entity.*;
 import org.bukkit.event.inventory.InventoryType;
 import org.bukkit.inventory.*;
-import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.*;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -21,9 +24,17 @@ import java.util.*;
 @SuppressWarnings("unused")
 public class Furnace extends Machine implements PropertyHolder<FurnaceProperties>, InventoryHolder, ConfigurationSerializable {
 
+    private static final InventoryView.Property[] VIEW_PROPERTIES = {
+            InventoryView.Property.COOK_TIME,
+            InventoryView.Property.TICKS_FOR_CURRENT_SMELTING,
+            InventoryView.Property.BURN_TIME,
+            InventoryView.Property.TICKS_FOR_CURRENT_FUEL
+    };
+
     private final FurnaceProperties furnaceProperties;
     private final RecipeManager recipeManager;
-    private final Inventory inventory;
+    // Only created while the inventory is used, see getInventory()
+    private volatile Inventory inventory;
     private ItemStack fuel;
     private ItemStack input;
     private ItemStack output;
@@ -32,6 +43,19 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
     private int fuelTime;
     private int fuelTimeTotal;
     private float experience;
+    // Whether the slots changed since they were last published to the inventory
+    private boolean slotsChanged;
+
+    // Cached lookups, resolved again only when the slot's material or the registry version changes
+    private Material recipeType;
+    private FurnaceRecipe recipe;
+    private int recipeVersion = -1;
+    private Material fuelType;
+    private FurnaceFuel furnaceFuel;
+    private int fuelVersion = -1;
+    private FastForwardMode fastForwardMode = FastForwardMode.NONE;
+    // Slot in the FurnaceLane while the timers are kept there, -1 while they're kept here
+    int laneSlot = -1;
 
     /**
      * Create a new furnace object
@@ -65,9 +89,7 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         this.fuel = null;
         this.input = null;
         this.output = null;
-        this.inventory = Bukkit.createInventory(this, InventoryType.FURNACE, Util.getColString(name));
         this.experience = 0.0f;
-        this.updateInventory();
     }
 
     // Used for deserializer
@@ -81,21 +103,19 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         this.output = output;
         this.furnaceProperties = furnaceProperties;
 
-        FurnaceRecipe furnaceRecipe = recipeManager.getByIngredient(input != null ? input.getType() : null);
+        FurnaceRecipe furnaceRecipe = getRecipe();
         if (furnaceRecipe != null) {
             this.cookTimeTotal = furnaceRecipe.getCookTime();
         } else {
             this.cookTimeTotal = 0;
         }
-        FurnaceFuel fuelF = recipeManager.getFuelByMaterial(fuel != null ? fuel.getType() : null);
+        FurnaceFuel fuelF = getFurnaceFuel();
         if (fuelF != null) {
             this.fuelTimeTotal = fuelF.getBurnTime();
         } else {
             this.fuelTimeTotal = 0;
         }
         this.experience = xp;
-        this.inventory = Bukkit.createInventory(this, InventoryType.FURNACE, Util.getColString(name));
-        this.updateInventory();
     }
 
     /**
@@ -119,6 +139,28 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         return new Furnace(name, uuid, cookTime, fuelTime, xp, fuel, input, output, furnaceProperties);
     }
 
+    /**
+     * Read this object from binary storage
+     * <p><b>Internal use only!</b></p>
+     *
+     * @param in Input to read from
+     * @return New instance of object
+     * @throws IOException If reading fails
+     */
+    public static Furnace readBinary(@NotNull BinaryInput in) throws IOException {
+        UUID uuid = in.readUUID();
+        String name = in.readUTF();
+        FurnaceProperties furnaceProperties = FurnaceProperties.readBinary(in);
+        int cookTime = in.readInt();
+        int fuelTime = in.readInt();
+        float xp = in.readFloat();
+        ItemStack fuel = in.readItem();
+        ItemStack input = in.readItem();
+        ItemStack output = in.readItem();
+
+        return new Furnace(name, uuid, cookTime, fuelTime, xp, fuel, input, output, furnaceProperties);
+    }
+
     /**
      * Get the properties associated with this furnace
      *
@@ -131,13 +173,47 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
 
     /**
      * Get this furnace's inventory
+     * <p>Changes made to the inventory are picked up by this furnace on the next server tick.
+     * If the inventory is modified while this furnace is idle, {@link #wake()} should be called afterwards</p>
+     * <p>The inventory is only created when needed, and released again on the next server tick
+     * once nobody is viewing it. References to it should not be kept.</p>
      *
      * @return Inventory
      */
     public @NotNull Inventory getInventory() {
+        Inventory inventory = this.inventory;
+        if (inventory == null || !isViewed()) {
+            // Inventories without viewers aren't kept up to date
+            inventory = updateInventory();
+            trackInventory(Util.copyItems(this.input, this.fuel, this.output));
+        }
+        wake();
         return inventory;
     }
 
+    /**
+     * Get this furnace's inventory, without any side effects
+     * <p><b>Internal use only!</b></p>
+     *
+     * @return Inventory, null if it isn't created
+     */
+    @Override
+    public @Nullable Inventory getViewInventory() {
+        return this.inventory;
+    }
+
+    /**
+     * Release this furnace's inventory if nobody is viewing it
+     * <p><b>Internal use only!</b></p>
+     */
+    @Override
+    public void releaseInventory() {
+        Inventory inventory = this.inventory;
+        if (inventory != null && !isViewed() && inventory.getViewers().isEmpty()) {
+            this.inventory = null;
+        }
+    }
+
     /**
      * Get this furnace's current fuel
      *
@@ -154,6 +230,9 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
      */
     public void setFuel(ItemStack fuel) {
         this.fuel = fuel;
+        this.slotsChanged = true;
+        markDirty();
+        wake();
     }
 
     /**
@@ -172,6 +251,9 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
      */
     public void setInput(ItemStack input) {
         this.input = input;
+        this.slotsChanged = true;
+        markDirty();
+        wake();
     }
 
     /**
@@ -192,6 +274,7 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
     public float extractExperience() {
         float exp = this.experience;
         this.experience = 0.0f;
+        markDirty();
         return exp;
     }
 
@@ -202,39 +285,48 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
      */
     @Override
     public void openInventory(Player player) {
-        updateInventory();
-        player.openInventory(this.inventory);
+        // Inventories with viewers are kept up to date by the view tick
+        Inventory inventory = this.inventory;
+        if (inventory == null || !isViewed()) {
+            inventory = updateInventory();
+        }
+        player.openInventory(inventory);
+        wake();
     }
 
-    private void updateInventory() {
-        this.inventory.setItem(0, this.input);
-        this.inventory.setItem(1, this.fuel);
-        this.inventory.setItem(2, this.output);
+    // Write the slots to the inventory, creating it if needed
+    private Inventory updateInventory() {
+        Inventory inventory = this.inventory;
+        if (inventory == null) {
+            inventory = Bukkit.createInventory(this, InventoryType.FURNACE, Util.getColString(getName()));
+            this.inventory = inventory;
+        }
+        inventory.setItem(0, this.input);
+        inventory.setItem(1, this.fuel);
+        inventory.setItem(2, this.output);
+        return inventory;
     }
 
+    // Pick up changes players made to the inventory
+    private void pickUpInventory() {
+        ItemStack[] slots = pickUpSlots();
+        if (slots == null) return;
+        this.input = slots[0];
+        this.fuel = slots[1];
+        this.output = slots[2];
+        markDirty();
+    }
+
+    // Publish the state of this furnace to its viewers, the view tick applies it on the main thread
     private void updateInventoryView() {
-        ItemStack input = this.inventory.getItem(0);
-        if (this.input != input) {
-            this.input = input;
-        }
-        ItemStack fuel = this.inventory.getItem(1);
-        if (this.fuel != fuel) {
-            this.fuel = fuel;
-        }
-        ItemStack output = this.inventory.getItem(2);
-        if (this.output != output) {
-            this.output = output;
-        }
-        for (HumanEntity entity : this.inventory.getViewers()) {
-            try {
-                InventoryView view = entity.getOpenInventory();
-                view.setProperty(InventoryView.Property.COOK_TIME, this.cookTime);
-                view.setProperty(InventoryView.Property.TICKS_FOR_CURRENT_SMELTING, this.cookTimeTotal);
-                view.setProperty(InventoryView.Property.BURN_TIME, this.fuelTime);
-                view.setProperty(InventoryView.Property.TICKS_FOR_CURRENT_FUEL, this.fuelTimeTotal);
-            } catch (Exception ignored) {
-            }
+        if (!isViewed()) return;
+        int[] values = {this.cookTime, this.cookTimeTotal, this.fuelTime, this.fuelTimeTotal};
+        ItemStack[] slots = null;
+        if (this.slotsChanged) {
+            slots = Util.copyItems(this.input, this.fuel, this.output);
+            this.slotsChanged = false;
         }
+        publishView(VIEW_PROPERTIES, values, slots);
     }
 
     /**
@@ -246,6 +338,7 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
     public void tick() {
         // The fuel is the fire in the middle, not the ItemStack
         // Cook time is the arrow in the Furnace UI
+        pickUpInventory();
 
         if (this.fuelTime > 0) { // If fuel still there
             burningTheFuel(); // decrease fuel
@@ -269,6 +362,7 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
 
             } else // the condition here is fuel empty and can't burn fuel (or cook)
                 if (this.cookTime > 0) { // If Furnace is cooking
+                    markDirty();
 
                     if (canCook()) // If ItemStack in cook slot is available (obviously can cook it)
                         this.cookTime -= 5; // decrease cook time because there is no fuel
@@ -280,22 +374,111 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         updateInventoryView();
     }
 
+    // Get the recipe for the current input, only looked up when the input type or registry changed
+    private FurnaceRecipe getRecipe() {
+        Material type = this.input != null ? this.input.getType() : null;
+        int version = this.recipeManager.getRegistryVersion();
+        if (type != this.recipeType || version != this.recipeVersion) {
+            this.recipe = this.recipeManager.getByIngredient(type);
+            this.recipeType = type;
+            this.recipeVersion = version;
+        }
+        return this.recipe;
+    }
+
+    // Get the fuel for the current fuel item, only looked up when the fuel type or registry changed
+    private FurnaceFuel getFurnaceFuel() {
+        Material type = this.fuel != null ? this.fuel.getType() : null;
+        int version = this.recipeManager.getRegistryVersion();
+        if (type != this.fuelType || version != this.fuelVersion) {
+            this.furnaceFuel = this.recipeManager.getFuelByMaterial(type);
+            this.fuelType = type;
+            this.fuelVersion = version;
+        }
+        return this.furnaceFuel;
+    }
+
+    /**
+     * Check whether this furnace is idle
+     * <p>A furnace is idle when it has no fuel burning, nothing cooking,
+     * can't ignite new fuel and has no viewers</p>
+     *
+     * @return True if this furnace is idle
+     */
+    @Override
+    public boolean isIdle() {
+        return this.fuelTime <= 0 && this.cookTime <= 0 && !(canBurn() && canCook()) && !isViewed();
+    }
+
+    /**
+     * Get the amount of upcoming ticks which can be applied at once with {@link #fastForward(int)}
+     *
+     * @return Amount of ticks which can be fast forwarded (0 if none)
+     */
+    @Override
+    public int getFastForwardTicks() {
+        this.fastForwardMode = FastForwardMode.NONE;
+        if (isViewed()) return 0;
+
+        if (this.fuelTime > 0) {
+            if (canCook()) {
+                // Stop before the tick which finishes the cook
+                this.fastForwardMode = FastForwardMode.COOKING;
+                return Math.max(0, Math.min(this.fuelTime, this.cookTimeTotal - this.cookTime - 1));
+            }
+            this.fastForwardMode = FastForwardMode.BURNING;
+            return this.fuelTime;
+        } else if (this.cookTime > 0 && canCook() && !canBurn()) {
+            this.fastForwardMode = FastForwardMode.COOLING;
+            return (this.cookTime + 4) / 5;
+        }
+        return 0;
+    }
+
+    /**
+     * Apply ticks in one step
+     * <p>The result is the same as ticking this furnace that many times,
+     * except {@link FurnaceFuelBurningEvent} and {@link FurnaceCookingEvent} are not called</p>
+     *
+     * @param ticks Amount of ticks to apply, at most {@link #getFastForwardTicks()}
+     */
+    @Override
+    public void fastForward(int ticks) {
+        if (ticks <= 0) return;
+        markDirty();
+        switch (this.fastForwardMode) {
+            case COOKING -> {
+                this.fuelTime -= ticks;
+                this.cookTime += ticks;
+            }
+            case BURNING -> {
+                this.fuelTime -= ticks;
+                this.cookTime = 0;
+            }
+            case COOLING -> this.cookTime -= 5 * ticks;
+        }
+    }
+
     // Checks to see if the fuel can be burt.
     private boolean canBurn() {
         if (this.fuel == null) return false;
-        return this.recipeManager.getFuelByMaterial(this.fuel.getType()) != null;
+        return getFurnaceFuel() != null;
     }
 
     // Ignite the fuel of the furnace.
     private void igniteFuel() {
-        FurnaceFuel fuel = this.recipeManager.getFuelByMaterial(this.fuel.getType());
+        FurnaceFuel fuel = getFurnaceFuel();
         if (fuel == null) return;
 
-        FurnaceFuelIgniteEvent event = new FurnaceFuelIgniteEvent(this, this.fuel, fuel, fuel.getBurnTime());
-        event.callEvent();
+        int burnTime = fuel.getBurnTime();
+        if (Event.hasListeners(FurnaceFuelIgniteEvent.getHandlerList())) {
+            FurnaceFuelIgniteEvent event = new FurnaceFuelIgniteEvent(this, this.fuel, fuel, burnTime);
+            event.callEvent();
 
-        if (event.isCancelled()) {
-            return;
+            if (event.isCancelled()) {
+                return;
+            }
+            burnTime = event.getBurnTime();
         }
         int fuelAmount = this.fuel.getAmount();
         if (fuelAmount > 1) {
@@ -307,24 +490,30 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
                 this.fuel = null;
             }
         }
-        int burn = (int) (event.getBurnTime() / furnaceProperties.getFuelMultiplier());
+        int burn = (int) (burnTime / furnaceProperties.getFuelMultiplier());
         this.fuelTime = burn;
         this.fuelTimeTotal = burn;
-        updateInventory();
+        this.slotsChanged = true;
+        markDirty();
+        recordTickEvent(MachineTickBatchEvent.Kind.FURNACE_IGNITE, burn);
     }
 
     // Burning the fuel of the furnace.
     private void burningTheFuel() {
         fuelTime--;
+        markDirty();
 
-        FurnaceFuelBurningEvent event = new FurnaceFuelBurningEvent(this, fuelTime);
-        event.callEvent();
+        if (Event.hasListeners(FurnaceFuelBurningEvent.getHandlerList())) {
+            FurnaceFuelBurningEvent event = new FurnaceFuelBurningEvent(this, fuelTime);
+            event.callEvent();
+        }
+        recordTickEvent(MachineTickBatchEvent.Kind.FURNACE_BURNING, fuelTime);
     }
 
     // Checks if the input is a valid ingredient of a FurnaceRecipe.
     private boolean canCook() {
         if (this.input == null) return false;
-        FurnaceRecipe result = this.recipeManager.getByIngredient(this.input.getType());
+        FurnaceRecipe result = getRecipe();
         if (result == null) return false;
         this.cookTimeTotal = (int) (result.getCookTime() / furnaceProperties.getCookMultiplier());
         if (this.output == null) return true;
@@ -338,7 +527,7 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
 
     // Finish the cook.
     private void finishCook() {
-        FurnaceRecipe result = this.recipeManager.getByIngredient(this.input.getType());
+        FurnaceRecipe result = getRecipe();
         if (result == null) return;
         ItemStack out;
         if (this.output == null) {
@@ -349,30 +538,61 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         }
         this.experience += result.getExperience();
 
-        FurnaceCookFinishEvent event = new FurnaceCookFinishEvent(this, this.input, out);
-        event.callEvent();
+        if (Event.hasListeners(FurnaceCookFinishEvent.getHandlerList())) {
+            FurnaceCookFinishEvent event = new FurnaceCookFinishEvent(this, this.input, out);
+            event.callEvent();
 
-        if (event.isCancelled()) {
-            return;
+            if (event.isCancelled()) {
+                return;
+            }
+            out = event.getResult();
         }
-        this.output = event.getResult();
+        this.output = out;
         int inputAmount = this.input.getAmount();
         if (inputAmount > 1) {
             this.input.setAmount(inputAmount - 1);
         } else {
             this.input = null;
         }
-        updateInventory();
+        this.slotsChanged = true;
+        recordTickEvent(MachineTickBatchEvent.Kind.FURNACE_COOK_FINISH, out != null ? out.getAmount() : 0);
     }
 
     private void cooking() {
-        FurnaceRecipe result = this.recipeManager.getByIngredient(this.input.getType());
+        FurnaceRecipe result = getRecipe();
         if (result == null) return;
 
         cookTime++;
 
-        FurnaceCookingEvent event = new FurnaceCookingEvent(this, input);
-        event.callEvent();
+        if (Event.hasListeners(FurnaceCookingEvent.getHandlerList())) {
+            FurnaceCookingEvent event = new FurnaceCookingEvent(this, input);
+            event.callEvent();
+        }
+        recordTickEvent(MachineTickBatchEvent.Kind.FURNACE_COOKING, cookTime);
+    }
+
+    // Timers handed to and from a FurnaceLane, only used on the tick thread
+    FastForwardMode fastForwardMode() {
+        return this.fastForwardMode;
+    }
+
+    int cookTime() {
+        return this.cookTime;
+    }
+
+    int fuelTime() {
+        return this.fuelTime;
+    }
+
+    void setTimers(int cookTime, int fuelTime) {
+        this.cookTime = cookTime;
+        this.fuelTime = fuelTime;
+        markDirty();
+    }
+
+    // The kind of ticks a furnace will go through until its next state change
+    enum FastForwardMode {
+        NONE, COOKING, BURNING, COOLING
     }
 
     @Override
@@ -384,12 +604,12 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
                 fuelTime == furnace.fuelTime && fuelTimeTotal == furnace.fuelTimeTotal &&
                 Objects.equals(furnaceProperties, furnace.furnaceProperties) && Objects.equals(recipeManager, furnace.recipeManager) &&
                 Objects.equals(fuel, furnace.fuel) && Objects.equals(input, furnace.input) &&
-                Objects.equals(output, furnace.output) && Objects.equals(inventory, furnace.inventory);
+                Objects.equals(output, furnace.output);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(furnaceProperties, recipeManager, fuel, input, output, cookTime, cookTimeTotal, fuelTime, fuelTimeTotal, inventory);
+        return Objects.hash(furnaceProperties, recipeManager, fuel, input, output, cookTime, cookTimeTotal, fuelTime, fuelTimeTotal);
     }
 
     @Override
@@ -397,7 +617,6 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
         return "Furnace{" +
                 "furnaceProperties=" + furnaceProperties +
                 ", recipeManager=" + recipeManager +
-                ", inventory=" + inventory +
                 ", fuel=" + fuel +
                 ", input=" + input +
                 ", output=" + output +
@@ -409,6 +628,37 @@ public class Furnace extends Machine implements PropertyHolder<FurnaceProperties
                 '}';
     }
 
+    /**
+     * Get a copy of the state of this furnace which is saved
+     * <p><b>Internal use only!</b> The copy isn't ticked, it is used to save this furnace off the calling thread.</p>
+     *
+     * @return Copy of this furnace
+     */
+    public @NotNull Furnace snapshot() {
+        ItemStack[] items = Util.copyItems(this.fuel, this.input, this.output);
+        return new Furnace(getName(), getUniqueID(), this.cookTime, this.fuelTime, this.experience,
+                items[0], items[1], items[2], this.furnaceProperties);
+    }
+
+    /**
+     * Write this object to binary storage
+     * <p><b>Internal use only!</b></p>
+     *
+     * @param out Output to write to
+     * @throws IOException If writing fails
+     */
+    public void writeBinary(@NotNull BinaryOutput out) throws IOException {
+        out.writeUUID(this.getUniqueID());
+        out.writeUTF(this.getName());
+        this.furnaceProperties.writeBinary(out);
+        out.writeInt(this.cookTime);
+        out.writeInt(this.fuelTime);
+        out.writeFloat(this.experience);
+        out.writeItem(this.fuel);
+        out.writeItem(this.input);
+        out.writeItem(this.output);
+    }
+
     /**
      * Serialize this object for yaml
      * <p><b>Internal use only!</b></p>
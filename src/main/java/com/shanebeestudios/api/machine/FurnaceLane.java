@@ -0,0 +1,170 @@
+package com.shanebeestudios.api.machine;
+
+import com.shanebeestudios.api.task.FurnaceTick;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Timers of furnaces which are only counting down, kept in parallel arrays
+ * <p><b>Internal use only!</b> Used by the {@link FurnaceTick} when furnaces aren't fast forwarded.</p>
+ * <p>A furnace which is burning fuel or cooking without reaching a state change is moved into the lane.
+ * Its cook and fuel time are then kept in the lane's arrays, and the furnace object is only a handle to them.
+ * Ticking the lane is a single scan over the arrays, without touching the furnaces.
+ * Once a furnace reaches its next state change, it leaves the lane and is ticked on its own again.</p>
+ * <p>Timers are written back to a furnace when it leaves the lane, or when the lane is {@link #sync() synced}.
+ * A lane may only be used by the thread furnaces are ticked on, other threads go through
+ * {@link FurnaceTick#settle()}, which waits for the running tick.</p>
+ */
+public final class FurnaceLane {
+
+    private static final byte COOKING = (byte) Furnace.FastForwardMode.COOKING.ordinal();
+    private static final byte BURNING = (byte) Furnace.FastForwardMode.BURNING.ordinal();
+    private static final byte COOLING = (byte) Furnace.FastForwardMode.COOLING.ordinal();
+
+    // Same order in all arrays, slots are kept dense
+    private Furnace[] furnaces = new Furnace[64];
+    private byte[] modes = new byte[64];
+    private int[] remaining = new int[64];
+    private int[] cookTimes = new int[64];
+    private int[] fuelTimes = new int[64];
+    private int size;
+
+    /**
+     * Move a furnace into this lane
+     * <p>The furnace's timers move by the kind of ticks found by its last {@link Furnace#getFastForwardTicks()}.</p>
+     *
+     * @param furnace Furnace to move into this lane
+     * @param ticks   Amount of ticks until its next state change, at most {@link Furnace#getFastForwardTicks()}
+     * @return True if the furnace was moved into this lane
+     */
+    public boolean add(@NotNull Furnace furnace, int ticks) {
+        Furnace.FastForwardMode mode = furnace.fastForwardMode();
+        if (furnace.laneSlot >= 0 || ticks <= 0 || mode == Furnace.FastForwardMode.NONE) return false;
+        if (this.size == this.furnaces.length) {
+            int length = this.size * 2;
+            this.furnaces = Arrays.copyOf(this.furnaces, length);
+            this.modes = Arrays.copyOf(this.modes, length);
+            this.remaining = Arrays.copyOf(this.remaining, length);
+            this.cookTimes = Arrays.copyOf(this.cookTimes, length);
+            this.fuelTimes = Arrays.copyOf(this.fuelTimes, length);
+        }
+        int slot = this.size++;
+        this.furnaces[slot] = furnace;
+        this.modes[slot] = (byte) mode.ordinal();
+        this.remaining[slot] = ticks;
+        this.cookTimes[slot] = furnace.cookTime();
+        this.fuelTimes[slot] = furnace.fuelTime();
+        furnace.laneSlot = slot;
+        return true;
+    }
+
+    /**
+     * Move a furnace out of this lane, writing its timers back
+     *
+     * @param furnace Furnace to move out of this lane
+     * @return True if the furnace was in this lane
+     */
+    public boolean remove(@NotNull Furnace furnace) {
+        int slot = furnace.laneSlot;
+        if (slot < 0 || slot >= this.size || this.furnaces[slot] != furnace) return false;
+        writeBack(slot);
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Apply one tick to all furnaces in this lane
+     * <p>Furnaces which reached their next state change are moved out of this lane.</p>
+     *
+     * @param finished Called with each furnace moved out of this lane
+     */
+    public void tick(@NotNull Consumer<Furnace> finished) {
+        byte[] modes = this.modes;
+        int[] remaining = this.remaining;
+        int[] cookTimes = this.cookTimes;
+        int[] fuelTimes = this.fuelTimes;
+        int slot = 0;
+        while (slot < this.size) {
+            // Same as Furnace#fastForward(1)
+            byte mode = modes[slot];
+            if (mode == COOKING) {
+                fuelTimes[slot]--;
+                cookTimes[slot]++;
+            } else if (mode == BURNING) {
+                fuelTimes[slot]--;
+                cookTimes[slot] = 0;
+            } else if (mode == COOLING) {
+                cookTimes[slot] -= 5;
+            }
+            if (--remaining[slot] > 0) {
+                slot++;
+                continue;
+            }
+            Furnace furnace = this.furnaces[slot];
+            writeBack(slot);
+            // The last furnace is moved into this slot, it isn't ticked yet
+            removeSlot(slot);
+            finished.accept(furnace);
+        }
+    }
+
+    /**
+     * Write the timers of all furnaces in this lane back to them, without moving them out
+     * <p>This brings their state up to date, for example before saving</p>
+     */
+    public void sync() {
+        for (int slot = 0; slot < this.size; slot++) {
+            writeBack(slot);
+        }
+    }
+
+    /**
+     * Move all furnaces out of this lane, writing their timers back
+     *
+     * @param released Called with each furnace moved out of this lane
+     */
+    public void clear(@NotNull Consumer<Furnace> released) {
+        int size = this.size;
+        Furnace[] furnaces = Arrays.copyOf(this.furnaces, size);
+        sync();
+        for (int slot = 0; slot < size; slot++) {
+            this.furnaces[slot].laneSlot = -1;
+            this.furnaces[slot] = null;
+        }
+        this.size = 0;
+        for (Furnace furnace : furnaces) {
+            released.accept(furnace);
+        }
+    }
+
+    /**
+     * Get the amount of furnaces in this lane
+     *
+     * @return Amount of furnaces in this lane
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private void writeBack(int slot) {
+        this.furnaces[slot].setTimers(this.cookTimes[slot], this.fuelTimes[slot]);
+    }
+
+    private void removeSlot(int slot) {
+        this.furnaces[slot].laneSlot = -1;
+        int last = --this.size;
+        if (slot != last) {
+            Furnace moved = this.furnaces[last];
+            this.furnaces[slot] = moved;
+            this.modes[slot] = this.modes[last];
+            this.remaining[slot] = this.remaining[last];
+            this.cookTimes[slot] = this.cookTimes[last];
+            this.fuelTimes[slot] = this.fuelTimes[last];
+            moved.laneSlot = slot;
+        }
+        this.furnaces[last] = null;
+    }
+
+}
@@ -1,9 +1,14 @@
 package com.shanebeestudios.api.machine;
 
+import com.shanebeestudios.api.VirtualFurnaceAPI;
+import com.shanebeestudios.api.event.machine.MachineTickBatchEvent;
+import com.shanebeestudios.api.task.*;
 import org.bukkit.entity.Player;
-import org.jetbrains.annotations.NotNull;
+import org.bukkit.inventory.*;
+import org.jetbrains.annotations.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Abstract machine class
@@ -13,6 +18,16 @@ public abstract class Machine {
 
     private final String name;
     private final UUID uniqueID;
+    // Slots changed by players, handed from the main thread to the tick thread
+    private final AtomicReference<SlotEdit> slotEdit = new AtomicReference<>();
+    // Last edit version handed off, only used on the main thread
+    private int slotEditVersion;
+    // Last edit version picked up, only used on the tick thread
+    private int pickedUpEditVersion;
+    private volatile boolean viewed;
+    // Whether this machine changed since it was last saved
+    private volatile boolean dirty;
+    private volatile boolean unjournaled;
 
     Machine(@NotNull UUID uniqueID, String name) {
         this.uniqueID = uniqueID;
@@ -43,6 +58,193 @@ public abstract class Machine {
     public void tick() {
     }
 
+    /**
+     * Check whether this machine is idle
+     * <p>An idle machine can't make any progress until something about it changes.
+     * Idle machines are put to sleep and not ticked until they are {@link #wake() woken}.</p>
+     *
+     * @return True if this machine is idle
+     */
+    public boolean isIdle() {
+        return false;
+    }
+
+    /**
+     * Get the amount of upcoming ticks which can be applied at once with {@link #fastForward(int)}
+     * <p>During these ticks only this machine's timers move, the tick after them
+     * is the next state change (a cook finishing, fuel running out...).
+     * Machines which are being viewed can't be fast forwarded.</p>
+     *
+     * @return Amount of ticks which can be fast forwarded (0 if none)
+     */
+    public int getFastForwardTicks() {
+        return 0;
+    }
+
+    /**
+     * Apply ticks in one step
+     * <p>The result is the same as calling {@link #tick()} that many times,
+     * except the per tick burning/cooking events are not called.
+     * The ticks are applied to the state this machine was in when
+     * {@link #getFastForwardTicks()} was last called.</p>
+     *
+     * @param ticks Amount of ticks to apply, at most {@link #getFastForwardTicks()}
+     */
+    public void fastForward(int ticks) {
+    }
+
+    /**
+     * Wake this machine so it is ticked again
+     * <p>This is done automatically when the machine is changed through the API
+     * or its inventory is clicked. If this machine's inventory is modified directly,
+     * this should be called afterwards.</p>
+     */
+    public void wake() {
+        VirtualFurnaceAPI virtualFurnaceAPI = VirtualFurnaceAPI.getInstance();
+        FurnaceTick furnaceTick = virtualFurnaceAPI != null ? virtualFurnaceAPI.getFurnaceTick() : null;
+        if (furnaceTick != null) {
+            furnaceTick.wake(this);
+        }
+    }
+
+    /**
+     * Check whether this machine changed since it was last saved
+     *
+     * @return True if this machine has unsaved changes
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Mark this machine as changed, so it is written on the next save
+     */
+    public void markDirty() {
+        this.dirty = true;
+        this.unjournaled = true;
+    }
+
+    /**
+     * Mark this machine as saved
+     * <p><b>Internal use only!</b> This should be called before this machine is serialized,
+     * so changes made while it is being serialized mark it dirty again.</p>
+     *
+     * @return True if this machine had unsaved changes
+     */
+    public boolean clearDirty() {
+        boolean dirty = this.dirty;
+        this.dirty = false;
+        return dirty;
+    }
+
+    /**
+     * Mark this machine as journaled
+     * <p><b>Internal use only!</b> Like {@link #clearDirty()}, but for the journal which
+     * records machines which changed in between saves.</p>
+     *
+     * @return True if this machine changed since it was last journaled
+     */
+    public boolean clearUnjournaled() {
+        boolean unjournaled = this.unjournaled;
+        this.unjournaled = false;
+        return unjournaled;
+    }
+
+    /**
+     * Check whether this machine is being viewed
+     * <p>Machines which are being viewed publish their state to the {@link ViewTick} after each tick</p>
+     *
+     * @return True if being viewed
+     */
+    public boolean isViewed() {
+        return this.viewed;
+    }
+
+    /**
+     * Set whether this machine is being viewed
+     * <p><b>Internal use only!</b></p>
+     *
+     * @param viewed Whether this machine is being viewed
+     */
+    public void setViewed(boolean viewed) {
+        this.viewed = viewed;
+    }
+
+    /**
+     * Get the inventory players view this machine in, without any side effects
+     * <p><b>Internal use only!</b></p>
+     *
+     * @return Inventory of this machine, null if it has none
+     */
+    public @Nullable Inventory getViewInventory() {
+        return null;
+    }
+
+    /**
+     * Release the inventory players view this machine in, if nobody is viewing it
+     * <p><b>Internal use only!</b> Called on the main thread by the {@link ViewTick}
+     * after changes made to the inventory were handed to this machine.</p>
+     */
+    public void releaseInventory() {
+    }
+
+    /**
+     * Hand slots players changed to this machine
+     * <p><b>Internal use only!</b> Called on the main thread by the {@link ViewTick}.
+     * The slots are picked up at the start of this machine's next tick.</p>
+     *
+     * @param slots Copies of all slots of this machine's inventory
+     */
+    public void handOffSlots(@Nullable ItemStack[] slots) {
+        this.slotEditVersion++;
+        this.slotEdit.set(new SlotEdit(this.slotEditVersion, slots));
+    }
+
+    /**
+     * Get the version of the last slots handed to this machine
+     * <p><b>Internal use only!</b></p>
+     *
+     * @return Version of the last handed off slots
+     */
+    public int getSlotEditVersion() {
+        return this.slotEditVersion;
+    }
+
+    // Pick up slots players changed, null if there are none
+    @Nullable ItemStack[] pickUpSlots() {
+        SlotEdit edit = this.slotEdit.getAndSet(null);
+        if (edit == null) return null;
+        this.pickedUpEditVersion = edit.version;
+        return edit.slots;
+    }
+
+    // Publish this machine's state for its viewers, slots may be null if they didn't change
+    void publishView(InventoryView.Property[] properties, int[] values, @Nullable ItemStack[] slots) {
+        VirtualFurnaceAPI virtualFurnaceAPI = VirtualFurnaceAPI.getInstance();
+        ViewTick viewTick = virtualFurnaceAPI != null ? virtualFurnaceAPI.getViewTick() : null;
+        if (viewTick != null) {
+            viewTick.publish(this, this.pickedUpEditVersion, properties, values, slots);
+        }
+    }
+
+    // Record what happened for the MachineTickBatchEvent, if it is being collected
+    void recordTickEvent(MachineTickBatchEvent.Kind kind, int value) {
+        VirtualFurnaceAPI virtualFurnaceAPI = VirtualFurnaceAPI.getInstance();
+        FurnaceTick furnaceTick = virtualFurnaceAPI != null ? virtualFurnaceAPI.getFurnaceTick() : null;
+        if (furnaceTick != null && furnaceTick.isBatchingEvents()) {
+            furnaceTick.recordEvent(this, kind, value);
+        }
+    }
+
+    // Track this machine's inventory for changes, with copies of the slots it currently has
+    void trackInventory(@Nullable ItemStack[] slots) {
+        VirtualFurnaceAPI virtualFurnaceAPI = VirtualFurnaceAPI.getInstance();
+        ViewTick viewTick = virtualFurnaceAPI != null ? virtualFurnaceAPI.getViewTick() : null;
+        if (viewTick != null) {
+            viewTick.track(this, slots);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -70,4 +272,8 @@ public abstract class Machine {
                 ", uniqueID=" + uniqueID +
                 '}';
     }
+
+    private record SlotEdit(int version, ItemStack[] slots) {
+    }
+
 }
@@ -1,10 +1,12 @@
 package com.shanebeestudios.api.property;
 
+import com.shanebeestudios.api.storage.*;
 import com.shanebeestudios.api.util.Util;
 import org.bukkit.NamespacedKey;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.util.*;
 
 public class BrewingProperties extends Properties implements ConfigurationSerializable {
@@ -37,11 +39,33 @@ public class BrewingProperties extends Properties implements ConfigurationSerial
         String stringKey = ((String) args.get("key")).split(":")[1];
         double brew = (double) args.get("brewMultiplier");
         double fuel = (double) args.get("fuelTimeMultiplier");
-        BrewingProperties brewerProperties = getProperties(stringKey);
-        if (brewerProperties != null) {
-            return brewerProperties;
-        } else {
-            return new BrewingProperties(stringKey).setBrewMultiplier(brew).setFuelTimeMultiplier(fuel);
+        synchronized (KEY_MAP) {
+            BrewingProperties brewerProperties = getProperties(stringKey);
+            if (brewerProperties != null) {
+                return brewerProperties;
+            } else {
+                return new BrewingProperties(stringKey).setBrewMultiplier(brew).setFuelTimeMultiplier(fuel);
+            }
+        }
+    }
+
+    public void writeBinary(@NotNull BinaryOutput out) throws IOException {
+        out.writeUTF(this.key.getKey());
+        out.writeDouble(this.brewMultiplier);
+        out.writeDouble(this.fuelTimeMultiplier);
+    }
+
+    public static BrewingProperties readBinary(@NotNull BinaryInput in) throws IOException {
+        String stringKey = in.readUTF();
+        double brew = in.readDouble();
+        double fuel = in.readDouble();
+        synchronized (KEY_MAP) {
+            BrewingProperties brewerProperties = getProperties(stringKey);
+            if (brewerProperties != null) {
+                return brewerProperties;
+            } else {
+                return new BrewingProperties(stringKey).setBrewMultiplier(brew).setFuelTimeMultiplier(fuel);
+            }
         }
     }
 
@@ -1,11 +1,13 @@
 package com.shanebeestudios.api.property;
 
 import com.shanebeestudios.api.machine.Furnace;
+import com.shanebeestudios.api.storage.*;
 import com.shanebeestudios.api.util.Util;
 import org.bukkit.*;
 import org.bukkit.configuration.serialization.ConfigurationSerializable;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -129,15 +131,52 @@ public class FurnaceProperties extends Properties implements Keyed, Configuratio
         return result;
     }
 
+    /**
+     * Write this property to binary storage
+     * <p><b>Internal use only!</b></p>
+     *
+     * @param out Output to write to
+     * @throws IOException If writing fails
+     */
+    public void writeBinary(@NotNull BinaryOutput out) throws IOException {
+        out.writeUTF(this.key.getKey());
+        out.writeDouble(this.cookX);
+        out.writeDouble(this.fuelX);
+    }
+
+    /**
+     * Read a property from binary storage
+     * <p><b>Internal use only!</b></p>
+     *
+     * @param in Input to read from
+     * @return Registered property with the key read, or a new property if none is registered
+     * @throws IOException If reading fails
+     */
+    public static FurnaceProperties readBinary(@NotNull BinaryInput in) throws IOException {
+        String stringKey = in.readUTF();
+        double cook = in.readDouble();
+        double fuel = in.readDouble();
+        synchronized (KEY_MAP) {
+            FurnaceProperties furnaceProperties = getProperty(stringKey);
+            if (furnaceProperties != null) {
+                return furnaceProperties;
+            } else {
+                return new FurnaceProperties(stringKey).cookMultiplier(cook).fuelMultiplier(fuel);
+            }
+        }
+    }
+
     public static FurnaceProperties deserialize(Map<String, Object> args) {
         String stringKey = ((String) args.get("key")).split(":")[1];
         double cook = (double) args.get("cookX");
         double fuel = (double) args.get("fuelX");
-        FurnaceProperties furnaceProperties = getProperty(stringKey);
-        if (furnaceProperties != null) {
-            return furnaceProperties;
-        } else {
-            return new FurnaceProperties(stringKey).cookMultiplier(cook).fuelMultiplier(fuel);
+        synchronized (KEY_MAP) {
+            FurnaceProperties furnaceProperties = getProperty(stringKey);
+            if (furnaceProperties != null) {
+                return furnaceProperties;
+            } else {
+                return new FurnaceProperties(stringKey).cookMultiplier(cook).fuelMultiplier(fuel);
+            }
         }
     }
 
@@ -4,13 +4,15 @@ import org.bukkit.*;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base property class
  */
 public abstract class Properties implements Keyed {
 
-    static final Map<NamespacedKey, Properties> KEY_MAP = new HashMap<>();
+    // Machines may be read on several threads at once
+    static final Map<NamespacedKey, Properties> KEY_MAP = new ConcurrentHashMap<>();
 
     final NamespacedKey key;
 
@@ -76,6 +76,7 @@ public class BrewingRecipe extends Recipe {
     private final ItemStack inputBottle;
     private final ItemStack outputBottle;
     private final int cookTime;
+    private final long matchKey;
 
     public BrewingRecipe(@NotNull NamespacedKey key, @NotNull ItemStack ingredient, @NotNull ItemStack inputBottle, @NotNull ItemStack outputBottle) {
         this(key, ingredient, inputBottle, outputBottle, 400);
@@ -87,6 +88,19 @@ public class BrewingRecipe extends Recipe {
         this.inputBottle = inputBottle;
         this.outputBottle = outputBottle;
         this.cookTime = cookTime;
+        this.matchKey = getMatchKey(ingredient, inputBottle);
+    }
+
+    /**
+     * Get the key used to match an ingredient and input bottle to a recipe
+     * <p>The key is made up of the {@link Util#getFingerprint(ItemStack) fingerprints} of both items</p>
+     *
+     * @param ingredient  Ingredient to match
+     * @param inputBottle Input bottle to match
+     * @return Match key of ingredient and bottle
+     */
+    public static long getMatchKey(@NotNull ItemStack ingredient, @NotNull ItemStack inputBottle) {
+        return ((long) Util.getFingerprint(ingredient) << 32) | (Util.getFingerprint(inputBottle) & 0xFFFFFFFFL);
     }
 
     private static BrewingRecipe get(String key, Material ingredient, PotionType input, PotionType out, boolean extend, boolean upgrade) {
@@ -163,6 +177,16 @@ public class BrewingRecipe extends Recipe {
         return cookTime;
     }
 
+    /**
+     * Get the key used to match this recipe
+     *
+     * @return Match key of this recipe
+     * @see #getMatchKey(ItemStack, ItemStack)
+     */
+    public long getMatchKey() {
+        return matchKey;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
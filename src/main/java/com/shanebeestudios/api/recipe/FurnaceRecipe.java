@@ -21,7 +21,14 @@ public class FurnaceRecipe extends Recipe {
     private static final List<Material> APPLICABLE_LOGTYPES = new ArrayList<>();
 
     static {
+        if (!RecipeSnapshot.load(VANILLA_FURNACE_RECIPES, VANILLA_SMOKING_RECIPES, VANILLA_BLASTING_RECIPES)) {
+            loadVanillaRecipes();
+            RecipeSnapshot.save(VANILLA_FURNACE_RECIPES, VANILLA_SMOKING_RECIPES, VANILLA_BLASTING_RECIPES);
+        }
+    }
 
+    // Walks all recipes of the server, only done when the snapshot is missing or outdated
+    private static void loadVanillaRecipes() {
         for (Material material : Material.values()) {
             if (material.name().contains("_LOG") || material.name().contains("_WOOD")) {
                 APPLICABLE_LOGTYPES.add(material);
@@ -0,0 +1,182 @@
+package com.shanebeestudios.api.recipe;
+
+import com.shanebeestudios.api.VirtualFurnaceAPI;
+import com.shanebeestudios.api.util.Util;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.packs.DataPack;
+import org.bukkit.plugin.Plugin;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Snapshot of the vanilla cooking recipes, saved in the plugin folder
+ * <p>Walking the server's recipes on every startup is slow, so the table built from them is saved once and read back
+ * with a single sequential read afterwards. The snapshot is keyed on the server version and a hash of everything
+ * which can change the recipes: the materials, the plugins, and the enabled datapacks and datapack files of the main world.
+ * If the key doesn't match, the snapshot is ignored and the recipes are walked again.</p>
+ */
+final class RecipeSnapshot {
+
+    private static final String FILE_NAME = "vanilla-recipes.dat";
+    private static final int MAGIC = 0x56465253;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FURNACE = 0;
+    private static final int SMOKING = 1;
+    private static final int BLASTING = 2;
+
+    private RecipeSnapshot() {
+    }
+
+    /**
+     * Load the snapshot into lists of recipes
+     * <p>Lists are only filled if the whole snapshot could be read.</p>
+     *
+     * @param furnace  List to add furnace recipes to
+     * @param smoking  List to add smoking recipes to
+     * @param blasting List to add blasting recipes to
+     * @return True if the snapshot was loaded, false if the recipes have to be walked instead
+     */
+    static boolean load(List<FurnaceRecipe> furnace, List<FurnaceRecipe> smoking, List<FurnaceRecipe> blasting) {
+        File file = getFile();
+        if (file == null || !file.exists()) return false;
+        List<List<FurnaceRecipe>> lists = Arrays.asList(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedShort() != FORMAT_VERSION) return false;
+            if (!in.readUTF().equals(getServerKey()) || in.readLong() != getRegistryHash()) return false;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int list = in.readUnsignedByte();
+                String key = in.readUTF();
+                Material ingredient = Material.getMaterial(in.readUTF());
+                Material result = Material.getMaterial(in.readUTF());
+                int cookTime = in.readInt();
+                float experience = in.readFloat();
+                if (list > BLASTING || ingredient == null || result == null) return false;
+                lists.get(list).add(new FurnaceRecipe(Util.getKey(key), ingredient, result, cookTime, experience));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // A damaged or cut off snapshot is rebuilt
+            return false;
+        }
+        furnace.addAll(lists.get(FURNACE));
+        smoking.addAll(lists.get(SMOKING));
+        blasting.addAll(lists.get(BLASTING));
+        return true;
+    }
+
+    /**
+     * Save recipes to the snapshot
+     *
+     * @param furnace  Furnace recipes
+     * @param smoking  Smoking recipes
+     * @param blasting Blasting recipes
+     */
+    static void save(List<FurnaceRecipe> furnace, List<FurnaceRecipe> smoking, List<FurnaceRecipe> blasting) {
+        File file = getFile();
+        if (file == null) return;
+        Path path = file.toPath();
+        Path temp = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeUTF(getServerKey());
+                out.writeLong(getRegistryHash());
+                out.writeInt(furnace.size() + smoking.size() + blasting.size());
+                writeRecipes(out, FURNACE, furnace);
+                writeRecipes(out, SMOKING, smoking);
+                writeRecipes(out, BLASTING, blasting);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Util.error("Failed to save recipe snapshot: " + e.getMessage());
+        }
+    }
+
+    private static void writeRecipes(DataOutputStream out, int list, List<FurnaceRecipe> recipes) throws IOException {
+        for (FurnaceRecipe recipe : recipes) {
+            out.writeByte(list);
+            out.writeUTF(recipe.getKey().getKey());
+            out.writeUTF(recipe.getIngredient().name());
+            out.writeUTF(recipe.getResult().name());
+            out.writeInt(recipe.getCookTime());
+            out.writeFloat(recipe.getExperience());
+        }
+    }
+
+    private static File getFile() {
+        VirtualFurnaceAPI api = VirtualFurnaceAPI.getInstance();
+        if (api == null) return null;
+        return new File(api.getJavaPlugin().getDataFolder(), FILE_NAME);
+    }
+
+    private static String getServerKey() {
+        return Bukkit.getVersion() + "/" + Bukkit.getBukkitVersion();
+    }
+
+    // Anything which can add, remove or change a cooking recipe goes into this hash
+    // Throws if a datapack can't be read, the snapshot can't be trusted then
+    private static long getRegistryHash() throws IOException {
+        CRC32 crc = new CRC32();
+        for (Material material : Material.values()) {
+            update(crc, material.name());
+        }
+        for (Plugin plugin : Bukkit.getPluginManager().getPlugins()) {
+            update(crc, plugin.getName());
+            update(crc, plugin.getDescription().getVersion());
+        }
+        List<World> worlds = Bukkit.getWorlds();
+        if (!worlds.isEmpty()) {
+            World world = worlds.get(0);
+            // Turning packs on or off is only recorded in level.dat, in the order they are applied
+            for (DataPack pack : Bukkit.getDataPackManager().getEnabledDataPacks(world)) {
+                update(crc, pack.getKey().toString());
+            }
+            File[] packs = new File(world.getWorldFolder(), "datapacks").listFiles();
+            if (packs != null) {
+                Arrays.sort(packs);
+                for (File pack : packs) {
+                    update(crc, pack.getName());
+                    if (pack.isDirectory()) {
+                        updateFolder(crc, pack.toPath());
+                    } else {
+                        update(crc, pack.lastModified() + ":" + pack.length());
+                    }
+                }
+            }
+        }
+        return ((long) Material.values().length << 32) | crc.getValue();
+    }
+
+    // A folder's own timestamp doesn't change when a file in it is edited, so each file is hashed instead
+    private static void updateFolder(CRC32 crc, Path folder) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(folder)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            update(crc, folder.relativize(file).toString());
+            update(crc, attributes.lastModifiedTime().toMillis() + ":" + attributes.size());
+        }
+    }
+
+    private static void update(CRC32 crc, String value) {
+        crc.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        crc.update(0);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.shanebeestudios.api.storage;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.util.io.BukkitObjectInputStream;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.UUID;
+
+/**
+ * Input for reading {@link com.shanebeestudios.api.machine.Machine Machines} from a {@link BinaryMachineStorage}
+ */
+public class BinaryInput extends DataInputStream {
+
+    private final int version;
+    private final Material[] palette;
+
+    BinaryInput(@NotNull InputStream in, int version, @NotNull Material[] palette) {
+        super(in);
+        this.version = version;
+        this.palette = palette;
+    }
+
+    // Materials which don't exist on this server version are null
+    static Material[] readPalette(DataInput in) throws IOException {
+        Material[] palette = new Material[in.readInt()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = Material.getMaterial(in.readUTF());
+        }
+        return palette;
+    }
+
+    /**
+     * Get the format version of the file being read
+     *
+     * @return Format version
+     */
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Read a UUID written as two longs
+     *
+     * @return UUID which was read
+     * @throws IOException If reading fails
+     */
+    public @NotNull UUID readUUID() throws IOException {
+        return new UUID(readLong(), readLong());
+    }
+
+    /**
+     * Read an item written by {@link BinaryOutput#writeItem(ItemStack)}
+     * <p>Items of materials which don't exist on this server version are read as null.</p>
+     *
+     * @return Item which was read
+     * @throws IOException If reading fails
+     */
+    public @Nullable ItemStack readItem() throws IOException {
+        int index = readShort();
+        if (index < 0) return null;
+        int amount = readUnsignedByte();
+        byte[] meta = new byte[readInt()];
+        readFully(meta);
+
+        Material material = index < this.palette.length ? this.palette[index] : null;
+        if (material == null) return null;
+        ItemStack item = new ItemStack(material, amount);
+        if (meta.length > 0) {
+            try (BukkitObjectInputStream in = new BukkitObjectInputStream(new ByteArrayInputStream(meta))) {
+                if (in.readObject() instanceof ItemMeta itemMeta) {
+                    item.setItemMeta(itemMeta);
+                }
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Failed to read meta of " + material, e);
+            }
+        }
+        return item;
+    }
+
+}
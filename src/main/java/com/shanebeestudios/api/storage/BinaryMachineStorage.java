@@ -0,0 +1,285 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.util.Util;
+import org.bukkit.Material;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * {@link MachineStorage} saving machines in compact binary files
+ * <p>A file starts with a magic number, the format version and the palette of materials used by its items,
+ * followed by records which either put or remove a machine. Machines write their own fields,
+ * see {@link BinaryOutput}.</p>
+ * <p>Since version 2 machines are prefixed with their length, so the records of a file can be
+ * split up first and decoded in parallel.</p>
+ *
+ * @param <M> Type of machine stored
+ */
+public class BinaryMachineStorage<M extends Machine> implements MachineStorage<M> {
+
+    /**
+     * Version of the format written, files with a newer version can't be read
+     */
+    public static final int FORMAT_VERSION = 2;
+
+    private static final int MAGIC = 0x5646534D; // VFSM
+    private static final byte REMOVE = 0;
+    private static final byte PUT = 1;
+
+    private final File file;
+    private final File changesFile;
+    private final Writer<M> writer;
+    private final Reader<M> reader;
+    // Machines saved/removed since the full file was last written
+    private final Map<UUID, M> saved = new LinkedHashMap<>();
+    private final Set<UUID> removed = new LinkedHashSet<>();
+    // Machines waiting to be written to the full file
+    private Collection<M> compacted;
+    // Whether the last load couldn't read everything, the full file is never written over then
+    private volatile boolean damaged;
+
+    /**
+     * Create a new binary storage
+     *
+     * @param file        Full file of the storage
+     * @param changesFile File for the changes since the last compaction
+     * @param writer      Writes a machine
+     * @param reader      Reads a machine written by the writer
+     */
+    public BinaryMachineStorage(@NotNull File file, @NotNull File changesFile, @NotNull Writer<M> writer, @NotNull Reader<M> reader) {
+        this.file = file;
+        this.changesFile = changesFile;
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    @Override
+    public synchronized @NotNull Collection<M> load() {
+        Map<UUID, M> machines = new LinkedHashMap<>();
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        this.damaged = false;
+        read(this.file, machines, false);
+        // Changes since the last compaction go on top of the full file
+        read(this.changesFile, machines, true);
+        return machines.values();
+    }
+
+    private void read(File file, Map<UUID, M> machines, boolean changes) {
+        if (!file.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a machine storage file: " + file);
+            }
+            int version = in.readUnsignedShort();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unsupported format version " + version + " of " + file);
+            }
+            Material[] palette = BinaryInput.readPalette(in);
+            BinaryInput input = new BinaryInput(in, version, palette);
+            int records = input.readInt();
+            // Machines, their bytes to decode or the UUIDs of removed machines, in order
+            List<Object> operations = new ArrayList<>(records);
+            List<byte[]> encoded = new ArrayList<>();
+            for (int i = 0; i < records; i++) {
+                if (input.readByte() == PUT) {
+                    if (version < 2) {
+                        operations.add(this.reader.read(input));
+                    } else {
+                        int length = input.readInt();
+                        if (length < 0 || length > file.length()) {
+                            throw new IOException("Damaged machine storage file: " + file);
+                        }
+                        byte[] bytes = new byte[length];
+                        input.readFully(bytes);
+                        operations.add(bytes);
+                        encoded.add(bytes);
+                    }
+                } else {
+                    operations.add(input.readUUID());
+                }
+            }
+            Iterator<M> decoded = ParallelDecoder.decode(file.getName(), encoded, bytes ->
+                    this.reader.read(new BinaryInput(new ByteArrayInputStream(bytes), version, palette))).iterator();
+
+            for (Object operation : operations) {
+                if (!(operation instanceof UUID)) {
+                    @SuppressWarnings("unchecked")
+                    M machine = operation instanceof byte[] ? decoded.next() : (M) operation;
+                    // Failed to decode, the rest of the file is still read
+                    if (machine == null) {
+                        this.damaged = true;
+                        continue;
+                    }
+                    UUID uuid = machine.getUniqueID();
+                    machines.put(uuid, machine);
+                    if (changes) {
+                        machine.markDirty();
+                        this.removed.remove(uuid);
+                        this.saved.put(uuid, machine);
+                    }
+                } else {
+                    UUID uuid = (UUID) operation;
+                    machines.remove(uuid);
+                    if (changes) {
+                        this.saved.remove(uuid);
+                        this.removed.add(uuid);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.damaged = true;
+        }
+        if (this.damaged) {
+            backUp(file);
+        }
+    }
+
+    // Keep a copy of a file which couldn't be read completely, in case it's written over
+    private void backUp(File file) {
+        File backup = new File(file.getPath() + ".damaged");
+        Util.error("&cCouldn't read all machines of " + file.getName() + ", it won't be compacted. A copy is kept as " + backup.getName());
+        try {
+            Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(File file, Collection<M> machines, Collection<UUID> removed) throws IOException {
+        // Records are written first, the palette is only known afterwards
+        Map<Material, Integer> paletteIndex = new EnumMap<>(Material.class);
+        List<Material> palette = new ArrayList<>();
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        BinaryOutput output = new BinaryOutput(records, paletteIndex, palette);
+        output.writeInt(machines.size() + removed.size());
+        ByteArrayOutputStream machineBytes = new ByteArrayOutputStream(256);
+        BinaryOutput machineOutput = new BinaryOutput(machineBytes, paletteIndex, palette);
+        for (M machine : machines) {
+            machineBytes.reset();
+            this.writer.write(machine, machineOutput);
+            machineOutput.flush();
+            output.writeByte(PUT);
+            output.writeInt(machineBytes.size());
+            machineBytes.writeTo(output);
+        }
+        for (UUID uuid : removed) {
+            output.writeByte(REMOVE);
+            output.writeUUID(uuid);
+        }
+        output.flush();
+
+        StorageFiles.write(file, stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            output.writePalette(out);
+            out.flush();
+            records.writeTo(stream);
+        });
+    }
+
+    @Override
+    public synchronized void save(@NotNull M machine) {
+        UUID uuid = machine.getUniqueID();
+        this.removed.remove(uuid);
+        this.saved.put(uuid, machine);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.saved.remove(uuid);
+        this.removed.add(uuid);
+    }
+
+    @Override
+    public synchronized int getChangeCount() {
+        return this.saved.size() + this.removed.size();
+    }
+
+    @Override
+    public boolean isDamaged() {
+        return this.damaged;
+    }
+
+    @Override
+    public synchronized void compact(@NotNull Collection<M> machines) {
+        if (this.damaged) {
+            // The full file still has the machines which couldn't be read, only write changes on top of it
+            for (M machine : machines) {
+                save(machine);
+            }
+            return;
+        }
+        this.compacted = machines;
+        this.saved.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public synchronized @NotNull Write prepareWrite() {
+        Collection<M> compacted = this.compacted;
+        List<M> saved = new ArrayList<>(this.saved.values());
+        List<UUID> removed = new ArrayList<>(this.removed);
+        return () -> {
+            if (compacted != null) {
+                write(this.file, compacted, Collections.emptyList());
+                synchronized (this) {
+                    if (this.compacted == compacted) {
+                        this.compacted = null;
+                    }
+                }
+            }
+            if (!saved.isEmpty() || !removed.isEmpty()) {
+                write(this.changesFile, saved, removed);
+            } else {
+                Files.deleteIfExists(this.changesFile.toPath());
+            }
+        };
+    }
+
+    @Override
+    public boolean exists() {
+        return this.file.exists();
+    }
+
+    @Override
+    public synchronized void delete() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        this.file.delete();
+        this.changesFile.delete();
+    }
+
+    /**
+     * Writes a machine to a {@link BinaryOutput}
+     *
+     * @param <M> Type of machine written
+     */
+    @FunctionalInterface
+    public interface Writer<M extends Machine> {
+
+        void write(@NotNull M machine, @NotNull BinaryOutput output) throws IOException;
+
+    }
+
+    /**
+     * Reads a machine from a {@link BinaryInput}
+     *
+     * @param <M> Type of machine read
+     */
+    @FunctionalInterface
+    public interface Reader<M extends Machine> {
+
+        @NotNull M read(@NotNull BinaryInput input) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.shanebeestudios.api.storage;
+
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Output for writing {@link com.shanebeestudios.api.machine.Machine Machines} to a {@link BinaryMachineStorage}
+ * <p>Materials are written as an index into a palette of the materials used, the palette is written
+ * by the storage in front of the machines. This keeps items readable when materials are added or
+ * removed by a server version.</p>
+ */
+public class BinaryOutput extends DataOutputStream {
+
+    private final Map<Material, Integer> paletteIndex;
+    private final List<Material> palette;
+
+    BinaryOutput(@NotNull OutputStream out) {
+        this(out, new EnumMap<>(Material.class), new ArrayList<>());
+    }
+
+    // Output adding to a palette shared by everything written to a storage
+    BinaryOutput(@NotNull OutputStream out, Map<Material, Integer> paletteIndex, List<Material> palette) {
+        super(out);
+        this.paletteIndex = paletteIndex;
+        this.palette = palette;
+    }
+
+    /**
+     * Write a UUID as two longs
+     *
+     * @param uuid UUID to write
+     * @throws IOException If writing fails
+     */
+    public void writeUUID(@NotNull UUID uuid) throws IOException {
+        writeLong(uuid.getMostSignificantBits());
+        writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Write an item as its material and amount, followed by its meta if it has any
+     *
+     * @param item Item to write
+     * @throws IOException If writing fails
+     */
+    public void writeItem(@Nullable ItemStack item) throws IOException {
+        if (item == null) {
+            writeShort(-1);
+            return;
+        }
+        Material material = item.getType();
+        Integer index = this.paletteIndex.get(material);
+        if (index == null) {
+            index = this.palette.size();
+            this.palette.add(material);
+            this.paletteIndex.put(material, index);
+        }
+        writeShort(index);
+        writeByte(item.getAmount());
+        if (item.hasItemMeta()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (BukkitObjectOutputStream meta = new BukkitObjectOutputStream(bytes)) {
+                meta.writeObject(item.getItemMeta());
+            }
+            writeInt(bytes.size());
+            bytes.writeTo(this);
+        } else {
+            writeInt(0);
+        }
+    }
+
+    // Written in front of what was written to this output
+    void writePalette(DataOutput out) throws IOException {
+        out.writeInt(this.palette.size());
+        for (Material material : this.palette) {
+            out.writeUTF(material.name());
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.util.Util;
+import org.bukkit.Material;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MachineStorage} splitting machines into bucket files by the hash of their UUID
+ * <p>Each bucket is a file of its own with a checksum, so a damaged bucket only affects the machines in it.
+ * Buckets are loaded in parallel, and a write only rewrites the buckets with machines which were saved/removed.
+ * Machines are written in the same format as a {@link BinaryMachineStorage}, each bucket has its own palette.</p>
+ * <p>A bucket which fails its checksum is skipped when loading, and moved aside before it is rewritten.</p>
+ *
+ * @param <M> Type of machine stored
+ */
+public class BucketMachineStorage<M extends Machine> implements MachineStorage<M> {
+
+    /**
+     * Version of the format written, files with a newer version can't be read
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x56464246; // VFBF
+
+    private final File folder;
+    private final int buckets;
+    private final BinaryMachineStorage.Writer<M> writer;
+    private final BinaryMachineStorage.Reader<M> reader;
+    // Guarded by this
+    private final Map<UUID, M> saved = new LinkedHashMap<>();
+    private final Set<UUID> removed = new LinkedHashSet<>();
+    private Collection<M> compacted;
+    // Whether the last load couldn't read every bucket, buckets are never written from scratch then
+    private volatile boolean damaged;
+    // Buckets with machines which belong in another bucket
+    private final Set<Integer> misplaced = new HashSet<>();
+
+    /**
+     * Create a new bucket storage
+     *
+     * @param folder  Folder the buckets are kept in
+     * @param buckets Amount of buckets machines are split into
+     * @param writer  Writes a machine
+     * @param reader  Reads a machine written by the writer
+     */
+    public BucketMachineStorage(@NotNull File folder, int buckets, @NotNull BinaryMachineStorage.Writer<M> writer,
+                                @NotNull BinaryMachineStorage.Reader<M> reader) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("There has to be at least 1 bucket");
+        }
+        this.folder = folder;
+        this.buckets = buckets;
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    private int getBucket(UUID uuid) {
+        return Math.floorMod(uuid.hashCode(), this.buckets);
+    }
+
+    private File getBucketFile(int bucket) {
+        return new File(this.folder, "bucket-" + bucket + ".dat");
+    }
+
+    // Buckets which have a file, including those of a higher bucket count
+    private List<Integer> getBucketFiles() {
+        String[] files = this.folder.list((dir, file) -> file.startsWith("bucket-") && file.endsWith(".dat"));
+        List<Integer> buckets = new ArrayList<>();
+        if (files == null) return buckets;
+        for (String file : files) {
+            try {
+                buckets.add(Integer.parseInt(file.substring(7, file.length() - 4)));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        Collections.sort(buckets);
+        return buckets;
+    }
+
+    @Override
+    public synchronized @NotNull Collection<M> load() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        this.misplaced.clear();
+        this.damaged = false;
+        List<Integer> buckets = getBucketFiles();
+        if (buckets.isEmpty()) return Collections.emptyList();
+
+        int threads = Math.min(buckets.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "VirtualFurnace-Load-" + this.folder.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<List<M>>> futures = new ArrayList<>(buckets.size());
+        for (int bucket : buckets) {
+            futures.add(executor.submit(() -> loadBucket(bucket)));
+        }
+        executor.shutdown();
+
+        List<M> machines = new ArrayList<>();
+        for (int i = 0; i < buckets.size(); i++) {
+            int bucket = buckets.get(i);
+            try {
+                for (M machine : futures.get(i).get()) {
+                    UUID uuid = machine.getUniqueID();
+                    if (getBucket(uuid) != bucket) {
+                        // Written with another bucket count, moved to its bucket with the next write
+                        machine.markDirty();
+                        this.saved.put(uuid, machine);
+                        this.misplaced.add(bucket);
+                    }
+                    machines.add(machine);
+                }
+            } catch (ExecutionException e) {
+                this.damaged = true;
+                Util.error("&cFailed to load " + getBucketFile(bucket).getName() + " of " + this.folder.getName() +
+                        ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.damaged = true;
+                Util.error("&cInterrupted while loading " + this.folder.getName() + ", buckets from " +
+                        getBucketFile(bucket).getName() + " on weren't loaded");
+                break;
+            }
+        }
+        return machines;
+    }
+
+    private List<M> loadBucket(int bucket) throws IOException {
+        Bucket records = readBucket(bucket);
+        Material[] palette = records.palette.toArray(new Material[0]);
+        List<M> machines = new ArrayList<>(records.records.size());
+        for (byte[] bytes : records.records.values()) {
+            BinaryInput input = new BinaryInput(new ByteArrayInputStream(bytes), records.version, palette);
+            machines.add(this.reader.read(input));
+        }
+        return machines;
+    }
+
+    // Records of a bucket by UUID, still in their written form
+    private Bucket readBucket(int bucket) throws IOException {
+        File file = getBucketFile(bucket);
+        Bucket records = new Bucket();
+        if (!file.exists()) return records;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a bucket file: " + file);
+            }
+            records.version = in.readUnsignedShort();
+            if (records.version > FORMAT_VERSION) {
+                throw new IOException("Unsupported format version " + records.version + " of " + file);
+            }
+            int crc = in.readInt();
+            int length = in.readInt();
+            if (length < 0 || length > file.length()) {
+                throw new IOException("Damaged bucket file: " + file);
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 check = new CRC32();
+            check.update(body);
+            if ((int) check.getValue() != crc) {
+                throw new IOException("Damaged bucket file: " + file);
+            }
+
+            DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body));
+            // Materials which don't exist on this server version keep their index, so their items are read as null
+            records.palette.addAll(Arrays.asList(BinaryInput.readPalette(bodyIn)));
+            int count = bodyIn.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(bodyIn.readLong(), bodyIn.readLong());
+                byte[] bytes = new byte[bodyIn.readInt()];
+                bodyIn.readFully(bytes);
+                records.records.put(uuid, bytes);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Damaged bucket file: " + file, e);
+        }
+        return records;
+    }
+
+    private void writeBucket(int bucket, Bucket records) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(records.palette.size());
+        for (Material material : records.palette) {
+            out.writeUTF(material != null ? material.name() : "");
+        }
+        out.writeInt(records.records.size());
+        for (Map.Entry<UUID, byte[]> entry : records.records.entrySet()) {
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            out.writeInt(entry.getValue().length);
+            out.write(entry.getValue());
+        }
+        out.flush();
+        CRC32 crc = new CRC32();
+        crc.update(body.toByteArray());
+
+        StorageFiles.write(getBucketFile(bucket), stream -> {
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeShort(FORMAT_VERSION);
+            header.writeInt((int) crc.getValue());
+            header.writeInt(body.size());
+            header.flush();
+            body.writeTo(stream);
+        });
+    }
+
+    @Override
+    public synchronized void save(@NotNull M machine) {
+        UUID uuid = machine.getUniqueID();
+        this.removed.remove(uuid);
+        this.saved.put(uuid, machine);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.saved.remove(uuid);
+        this.removed.add(uuid);
+    }
+
+    @Override
+    public int getChangeCount() {
+        // Buckets are rewritten as a whole, there is nothing to compact
+        return 0;
+    }
+
+    @Override
+    public boolean isDamaged() {
+        return this.damaged;
+    }
+
+    @Override
+    public synchronized void compact(@NotNull Collection<M> machines) {
+        if (this.damaged) {
+            // Buckets which couldn't be read would be emptied, only write the given machines into them
+            for (M machine : machines) {
+                save(machine);
+            }
+            return;
+        }
+        this.compacted = machines;
+        this.saved.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public synchronized @NotNull Write prepareWrite() {
+        // Written into their buckets, so there is nothing to keep once they're written
+        Collection<M> compacted = this.compacted;
+        Map<UUID, M> saved = new LinkedHashMap<>(this.saved);
+        Set<UUID> removed = new LinkedHashSet<>(this.removed);
+        Set<Integer> misplaced = new HashSet<>(this.misplaced);
+        this.compacted = null;
+        this.saved.clear();
+        this.removed.clear();
+        return () -> {
+            try {
+                write(compacted, saved, removed, misplaced);
+            } catch (IOException | RuntimeException e) {
+                requeue(compacted, saved, removed);
+                throw e;
+            }
+        };
+    }
+
+    // Changes made after a failed write take priority over it
+    private synchronized void requeue(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed) {
+        if (compacted != null && this.compacted == null) {
+            this.compacted = compacted;
+        }
+        for (Map.Entry<UUID, M> entry : saved.entrySet()) {
+            if (!this.saved.containsKey(entry.getKey()) && !this.removed.contains(entry.getKey())) {
+                this.saved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (UUID uuid : removed) {
+            if (!this.saved.containsKey(uuid)) {
+                this.removed.add(uuid);
+            }
+        }
+    }
+
+    private void write(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed, Set<Integer> misplaced) throws IOException {
+        Map<Integer, Map<UUID, M>> machines = new TreeMap<>();
+        Map<Integer, Set<UUID>> removedMachines = new HashMap<>();
+        if (compacted != null) {
+            // Every bucket is written from scratch
+            for (int bucket = 0; bucket < this.buckets; bucket++) {
+                machines.put(bucket, new LinkedHashMap<>());
+            }
+            for (M machine : compacted) {
+                machines.get(getBucket(machine.getUniqueID())).put(machine.getUniqueID(), machine);
+            }
+        }
+        for (M machine : saved.values()) {
+            machines.computeIfAbsent(getBucket(machine.getUniqueID()), bucket -> new LinkedHashMap<>())
+                    .put(machine.getUniqueID(), machine);
+        }
+        for (UUID uuid : removed) {
+            if (saved.containsKey(uuid)) continue;
+            int bucket = getBucket(uuid);
+            machines.computeIfAbsent(bucket, key -> new LinkedHashMap<>());
+            removedMachines.computeIfAbsent(bucket, key -> new HashSet<>()).add(uuid);
+        }
+        for (int bucket : misplaced) {
+            if (bucket < this.buckets) {
+                machines.computeIfAbsent(bucket, key -> new LinkedHashMap<>());
+            }
+        }
+        if (!machines.isEmpty()) {
+            Files.createDirectories(this.folder.toPath());
+        }
+
+        for (Map.Entry<Integer, Map<UUID, M>> entry : machines.entrySet()) {
+            int bucket = entry.getKey();
+            Bucket records;
+            if (compacted != null) {
+                records = new Bucket();
+            } else {
+                try {
+                    records = readBucket(bucket);
+                } catch (IOException e) {
+                    // Kept for recovery, the machines in it are lost otherwise
+                    File file = getBucketFile(bucket);
+                    File damaged = new File(this.folder, file.getName() + ".damaged");
+                    Util.error("&cMoving damaged " + file.getName() + " of " + this.folder.getName() + " to " + damaged.getName());
+                    if (!file.renameTo(damaged)) {
+                        throw e;
+                    }
+                    records = new Bucket();
+                }
+            }
+            Map<Material, Integer> paletteIndex = new EnumMap<>(Material.class);
+            for (int i = 0; i < records.palette.size(); i++) {
+                Material material = records.palette.get(i);
+                if (material != null) paletteIndex.putIfAbsent(material, i);
+            }
+            for (M machine : entry.getValue().values()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+                BinaryOutput output = new BinaryOutput(bytes, paletteIndex, records.palette);
+                this.writer.write(machine, output);
+                output.flush();
+                records.records.put(machine.getUniqueID(), bytes.toByteArray());
+            }
+            records.records.keySet().removeAll(removedMachines.getOrDefault(bucket, Collections.emptySet()));
+            // Machines moved to their own bucket
+            records.records.keySet().removeIf(uuid -> getBucket(uuid) != bucket);
+            writeBucket(bucket, records);
+        }
+
+        // Buckets beyond the bucket count only had machines which were moved
+        for (int bucket : getBucketFiles()) {
+            if (bucket >= this.buckets && (compacted != null || misplaced.contains(bucket))) {
+                Files.deleteIfExists(getBucketFile(bucket).toPath());
+            }
+        }
+        synchronized (this) {
+            this.misplaced.removeAll(misplaced);
+        }
+    }
+
+    @Override
+    public boolean exists() {
+        return !getBucketFiles().isEmpty();
+    }
+
+    @Override
+    public synchronized void delete() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        this.misplaced.clear();
+        for (int bucket : getBucketFiles()) {
+            getBucketFile(bucket).delete();
+        }
+    }
+
+    private static class Bucket {
+
+        private int version = FORMAT_VERSION;
+        private final List<Material> palette = new ArrayList<>();
+        private final Map<UUID, byte[]> records = new LinkedHashMap<>();
+
+    }
+
+}
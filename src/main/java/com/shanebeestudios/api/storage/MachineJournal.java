@@ -0,0 +1,347 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.util.Util;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of changes to {@link Machine Machines}
+ * <p>Machines which are created, changed or removed in between saves of a {@link MachineStorage} are
+ * recorded here, so they aren't lost when the server stops without saving. Records are collected
+ * until they are {@link #commit() committed}, which appends them to the journal as one frame on a dedicated
+ * thread. Commits requested while an earlier one is waiting to start are written together.</p>
+ * <p>The journal is split into segments. Once a storage write picked up everything recorded so far,
+ * the segments before it are {@link #checkpoint() checkpointed} and deleted. Records are written
+ * in the same format as a {@link BinaryMachineStorage}.</p>
+ *
+ * @param <M> Type of machine recorded
+ */
+public class MachineJournal<M extends Machine> {
+
+    private static final int MAGIC = 0x56464A4C; // VFJL
+    private static final int FORMAT_VERSION = 1;
+    private static final byte REMOVE = 0;
+    private static final byte PUT = 1;
+
+    private final File folder;
+    private final String name;
+    private final BinaryMachineStorage.Writer<M> writer;
+    private final BinaryMachineStorage.Reader<M> reader;
+    private final ExecutorService executor;
+    // Records which weren't committed yet, and the segment they go to
+    private List<JournalRecord<M>> pending = new ArrayList<>();
+    private long segment;
+    private boolean commitQueued;
+    // Only touched on the journal thread
+    private FileChannel channel;
+    private long channelSegment = -1;
+
+    /**
+     * Create a new journal
+     *
+     * @param folder Folder the segments of the journal are kept in
+     * @param name   Name of the journal, segments are named after it
+     * @param writer Writes a machine
+     * @param reader Reads a machine written by the writer
+     */
+    public MachineJournal(@NotNull File folder, @NotNull String name, @NotNull BinaryMachineStorage.Writer<M> writer,
+                          @NotNull BinaryMachineStorage.Reader<M> reader) {
+        this.folder = folder;
+        this.name = name;
+        this.writer = writer;
+        this.reader = reader;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualFurnace-Journal-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] segments = getSegments();
+        this.segment = segments.length > 0 ? segments[segments.length - 1] + 1 : 0;
+    }
+
+    /**
+     * Record a machine which was created or changed
+     *
+     * @param machine Snapshot of the machine
+     */
+    public synchronized void put(@NotNull M machine) {
+        this.pending.add(new JournalRecord<>(machine.getUniqueID(), machine));
+    }
+
+    /**
+     * Record a machine which was removed
+     *
+     * @param uuid ID of the machine
+     */
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.pending.add(new JournalRecord<>(uuid, null));
+    }
+
+    /**
+     * Append the records collected since the last commit to the journal
+     */
+    public synchronized void commit() {
+        if (this.commitQueued || this.pending.isEmpty()) return;
+        this.commitQueued = true;
+        execute(() -> {
+            List<JournalRecord<M>> records;
+            long segment;
+            synchronized (this) {
+                records = this.pending;
+                segment = this.segment;
+                this.pending = new ArrayList<>();
+                this.commitQueued = false;
+            }
+            append(segment, records);
+        });
+    }
+
+    /**
+     * Start a new segment
+     * <p>Records collected so far are committed to the current segment, records collected from now on go to a new one.
+     * Once everything recorded so far is written to the storage, the returned segment can be {@link #delete(long) deleted}.</p>
+     *
+     * @return Last segment with records from before this call
+     */
+    public synchronized long checkpoint() {
+        long segment = this.segment++;
+        if (!this.pending.isEmpty()) {
+            List<JournalRecord<M>> records = this.pending;
+            this.pending = new ArrayList<>();
+            execute(() -> append(segment, records));
+        }
+        return segment;
+    }
+
+    /**
+     * Delete a segment and all segments before it
+     *
+     * @param segment Last segment to delete
+     */
+    public void delete(long segment) {
+        execute(() -> {
+            if (this.channelSegment <= segment) {
+                closeChannel();
+            }
+            for (long existing : getSegments()) {
+                if (existing <= segment) {
+                    getSegmentFile(existing).delete();
+                }
+            }
+        });
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            this.executor.execute(runnable);
+        } catch (RejectedExecutionException ignore) {
+            // Shut down, the storage was saved
+        }
+    }
+
+    private void append(long segment, List<JournalRecord<M>> records) {
+        if (records.isEmpty()) return;
+        try {
+            if (this.channelSegment != segment) {
+                closeChannel();
+                this.channel = FileChannel.open(getSegmentFile(segment).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                this.channelSegment = segment;
+                if (this.channel.size() == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(6).putInt(MAGIC).putShort((short) FORMAT_VERSION).flip();
+                    while (header.hasRemaining()) this.channel.write(header);
+                }
+            }
+
+            // Records are written first, the palette is only known afterwards
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            BinaryOutput output = new BinaryOutput(recordBytes);
+            output.writeInt(records.size());
+            for (JournalRecord<M> record : records) {
+                if (record.machine != null) {
+                    output.writeByte(PUT);
+                    this.writer.write(record.machine, output);
+                } else {
+                    output.writeByte(REMOVE);
+                    output.writeUUID(record.uuid);
+                }
+            }
+            output.flush();
+            ByteArrayOutputStream frameBytes = new ByteArrayOutputStream(recordBytes.size() + 256);
+            DataOutputStream frameOutput = new DataOutputStream(frameBytes);
+            output.writePalette(frameOutput);
+            frameOutput.flush();
+            recordBytes.writeTo(frameBytes);
+            byte[] frame = frameBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(frame);
+            ByteBuffer buffer = ByteBuffer.allocate(frame.length + 8);
+            buffer.putInt(frame.length).putInt((int) crc.getValue()).put(frame).flip();
+            while (buffer.hasRemaining()) this.channel.write(buffer);
+            // Group commit, one sync for all records of this frame
+            this.channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeChannel();
+            synchronized (this) {
+                // A partly written frame ends its segment, later records go to a new one
+                if (this.segment == segment) {
+                    this.segment++;
+                }
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (this.channel == null) return;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.channel = null;
+        this.channelSegment = -1;
+    }
+
+    /**
+     * Replay all records in the journal on top of machines loaded from a storage
+     * <p>Machines which were replayed are marked dirty. A frame which was only partly written
+     * when the server stopped ends the segment it is in.</p>
+     *
+     * @param machines Machines loaded from the storage, by ID
+     * @return Amount of records replayed
+     */
+    public int replay(@NotNull Map<UUID, M> machines) {
+        return replay(machines, new HashSet<>());
+    }
+
+    /**
+     * Replay all records in the journal on top of machines loaded from a storage
+     * <p>Like {@link #replay(Map)}, for storages which weren't loaded completely.
+     * Machines removed by the journal are collected, whether they were in the map or not.</p>
+     *
+     * @param machines Machines loaded from the storage, by ID
+     * @param removed  Collects the IDs of machines which were removed
+     * @return Amount of records replayed
+     */
+    public int replay(@NotNull Map<UUID, M> machines, @NotNull Set<UUID> removed) {
+        int replayed = 0;
+        for (long segment : getSegments()) {
+            File file = getSegmentFile(segment);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a journal file: " + file);
+                }
+                int version = in.readUnsignedShort();
+                if (version > FORMAT_VERSION) {
+                    throw new IOException("Unsupported format version " + version + " of " + file);
+                }
+                while (true) {
+                    byte[] frame = null;
+                    int crc = 0;
+                    try {
+                        int length = in.readInt();
+                        crc = in.readInt();
+                        if (length >= 0 && length <= file.length()) {
+                            frame = new byte[length];
+                            in.readFully(frame);
+                        }
+                    } catch (EOFException ignore) {
+                        // Nothing more was written, or the server stopped while writing the last frame
+                        break;
+                    }
+                    CRC32 check = new CRC32();
+                    if (frame != null) check.update(frame);
+                    if (frame == null || (int) check.getValue() != crc) {
+                        Util.error("&cIgnoring damaged end of journal " + file.getName());
+                        break;
+                    }
+                    replayed += replay(frame, version, machines, removed);
+                }
+            } catch (IOException e) {
+                Util.error("&cFailed to replay journal " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return replayed;
+    }
+
+    private int replay(byte[] frame, int version, Map<UUID, M> machines, Set<UUID> removed) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        BinaryInput input = new BinaryInput(in, version, BinaryInput.readPalette(in));
+        int records = input.readInt();
+        for (int i = 0; i < records; i++) {
+            if (input.readByte() == PUT) {
+                M machine = this.reader.read(input);
+                machine.markDirty();
+                machines.put(machine.getUniqueID(), machine);
+                removed.remove(machine.getUniqueID());
+            } else {
+                UUID uuid = input.readUUID();
+                machines.remove(uuid);
+                removed.add(uuid);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Stop this journal, waiting for requested commits to finish
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Util.error("&cTimed out writing journal " + this.name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannel();
+    }
+
+    /**
+     * Delete all segments of this journal
+     * <p>This should only be used once this journal is {@link #shutdown() shut down}.</p>
+     */
+    public void deleteAll() {
+        for (long segment : getSegments()) {
+            getSegmentFile(segment).delete();
+        }
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(this.folder, this.name + ".journal." + segment);
+    }
+
+    private long[] getSegments() {
+        String prefix = this.name + ".journal.";
+        String[] files = this.folder.list((dir, file) -> file.startsWith(prefix));
+        if (files == null) return new long[0];
+        List<Long> segments = new ArrayList<>();
+        for (String file : files) {
+            try {
+                segments.add(Long.parseLong(file.substring(prefix.length())));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        long[] sorted = new long[segments.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = segments.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private record JournalRecord<M>(UUID uuid, M machine) {
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Storage for {@link Machine Machines}
+ * <p>Machines are kept in a full file, and machines saved/removed since the full file was last written
+ * are kept in a changes file on top of it.</p>
+ * <p>Machines given to a storage are snapshots which aren't changed anymore. Nothing is written until
+ * a {@link #prepareWrite() prepared write} is run, which can be done on any thread.</p>
+ *
+ * @param <M> Type of machine stored
+ */
+public interface MachineStorage<M extends Machine> {
+
+    /**
+     * Load all machines, including the changes saved since the last compaction
+     * <p>Machines loaded from the changes file are marked dirty. They are kept as changes,
+     * the caller should save snapshots of them before they are changed.</p>
+     *
+     * @return All machines in this storage
+     */
+    @NotNull Collection<M> load();
+
+    /**
+     * Save a machine with the next write
+     *
+     * @param machine Snapshot of the machine to save
+     */
+    void save(@NotNull M machine);
+
+    /**
+     * Remove a machine with the next write
+     *
+     * @param uuid ID of the machine to remove
+     */
+    void remove(@NotNull UUID uuid);
+
+    /**
+     * Get the amount of machines saved/removed since the last compaction
+     * <p>Storages which write machines in place have nothing to compact, and return 0.</p>
+     *
+     * @return Amount of changes
+     */
+    int getChangeCount();
+
+    /**
+     * Check whether machines couldn't be read by the last {@link #load()}
+     * <p>The machines which were read are kept, but the full file is then missing machines.
+     * A damaged storage never writes over its full file: compactions are saved as changes instead,
+     * so the machines which couldn't be read can still be recovered from it.</p>
+     *
+     * @return True if the last load was incomplete
+     */
+    default boolean isDamaged() {
+        return false;
+    }
+
+    /**
+     * Write all machines to the full file with the next write, and drop the changes saved since the last compaction
+     *
+     * @param machines Snapshots of all machines
+     */
+    void compact(@NotNull Collection<M> machines);
+
+    /**
+     * Prepare a write of everything saved/removed/compacted
+     * <p>The full file is written first if a compaction is pending, after which the changes file is replaced.
+     * If writing the full file fails, the compaction stays pending and the changes file is left alone.</p>
+     *
+     * @return Write to run
+     */
+    @NotNull Write prepareWrite();
+
+    /**
+     * Check whether the full file of this storage exists
+     *
+     * @return True if it exists
+     */
+    boolean exists();
+
+    /**
+     * Delete all files of this storage
+     */
+    void delete();
+
+    /**
+     * Release what this storage keeps open, once nothing is written to it anymore
+     */
+    default void close() {
+    }
+
+    /**
+     * Write to the files of a storage
+     */
+    @FunctionalInterface
+    interface Write {
+
+        void write() throws IOException;
+
+    }
+
+}
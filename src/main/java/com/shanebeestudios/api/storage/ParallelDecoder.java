@@ -0,0 +1,97 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.util.Util;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes records of a storage into machines on a pool of worker threads
+ * <p>Records are split into one contiguous chunk per thread, small amounts are decoded on the calling thread.
+ * The pool only lives as long as a single call.</p>
+ */
+final class ParallelDecoder {
+
+    // Below this many records per thread, starting threads costs more than it saves
+    private static final int MIN_RECORDS_PER_THREAD = 256;
+
+    private ParallelDecoder() {
+    }
+
+    /**
+     * Decode records in parallel
+     *
+     * @param name    Name of what is decoded, used for the thread names
+     * @param records Records to decode
+     * @param decoder Decodes a single record
+     * @param <R>     Type of record
+     * @param <M>     Type of decoded record
+     * @return Decoded records in the same order, null for records which failed to decode
+     * @throws IOException If decoding was interrupted or a thread failed, records would be missing then
+     */
+    static <R, M> List<M> decode(String name, List<R> records, Decoder<R, M> decoder) throws IOException {
+        int size = records.size();
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_RECORDS_PER_THREAD);
+        Object[] decoded = new Object[size];
+        if (threads <= 1) {
+            decodeRange(name, records, decoder, decoded, 0, size);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "VirtualFurnace-Load-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<?>> futures = new ArrayList<>(threads);
+                for (int i = 0; i < threads; i++) {
+                    int from = (int) ((long) size * i / threads);
+                    int to = (int) ((long) size * (i + 1) / threads);
+                    futures.add(executor.submit(() -> decodeRange(name, records, decoder, decoded, from, to)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to decode " + name, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decoding " + name, e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        List<M> list = new ArrayList<>(size);
+        for (Object machine : decoded) {
+            @SuppressWarnings("unchecked")
+            M cast = (M) machine;
+            list.add(cast);
+        }
+        return list;
+    }
+
+    private static <R, M> void decodeRange(String name, List<R> records, Decoder<R, M> decoder, Object[] decoded, int from, int to) {
+        for (int i = from; i < to; i++) {
+            try {
+                decoded[i] = decoder.decode(records.get(i));
+            } catch (IOException | RuntimeException e) {
+                Util.error("&cFailed to decode record " + i + " of " + name + ": " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Decodes a single record
+     *
+     * @param <R> Type of record
+     * @param <M> Type of decoded record
+     */
+    @FunctionalInterface
+    interface Decoder<R, M> {
+
+        M decode(R record) throws IOException;
+
+    }
+
+}
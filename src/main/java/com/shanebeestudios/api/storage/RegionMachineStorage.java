@@ -0,0 +1,689 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.util.Util;
+import org.bukkit.Material;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * {@link MachineStorage} saving machines in fixed-size slots of memory-mapped region files
+ * <p>Machines are written in the same format as a {@link BinaryMachineStorage}, into a slot of their own.
+ * Slots are found through an index by UUID, built when the storage is opened, so a single machine can be
+ * {@link #read(UUID) read} without reading any others. Machines which are saved are written in place,
+ * there is no changes file.</p>
+ * <p>Machines which don't fit in a slot, for example because of large item meta, are kept in an overflow file instead.
+ * The palette of materials is shared by all machines in the storage.</p>
+ * <p>Slots of machines which weren't {@link Machine#isIdle() idle} when they were written are flagged as active,
+ * so those can be loaded up front and the rest {@link #read(UUID) on access}.
+ * Reads see machines which were saved but aren't written yet.</p>
+ * <p>The machine writer has to start with the machine's UUID, written with {@link BinaryOutput#writeUUID(UUID)}.</p>
+ *
+ * @param <M> Type of machine stored
+ */
+public class RegionMachineStorage<M extends Machine> implements MachineStorage<M> {
+
+    /**
+     * Version of the format written, storages with a newer version can't be read
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x56465247; // VFRG
+    private static final int SLOTS_PER_REGION = 4096;
+    // Used flag, length and checksum in front of each slot
+    private static final int SLOT_HEADER = 7;
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    // Used by a machine which wasn't idle
+    private static final byte ACTIVE = 2;
+
+    private final File folder;
+    private final File paletteFile;
+    private final File overflowFile;
+    private final BinaryMachineStorage.Writer<M> writer;
+    private final BinaryMachineStorage.Reader<M> reader;
+    private int slotSize;
+    private boolean opened;
+
+    // Guarded by this
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+    private final SlotIndex index = new SlotIndex();
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private final Map<UUID, byte[]> overflow = new HashMap<>();
+    private final Set<UUID> active = new HashSet<>();
+    private Material[] palette = new Material[0];
+    private final Map<UUID, M> saved = new LinkedHashMap<>();
+    private final Set<UUID> removed = new LinkedHashSet<>();
+    private Collection<M> compacted;
+    // Whether the last load couldn't read every machine, machines left out of a compaction are kept then
+    private volatile boolean damaged;
+    // Machines being written
+    private Map<UUID, M> writing = Collections.emptyMap();
+    private Set<UUID> writingRemoved = Collections.emptySet();
+
+    // Only touched by writes
+    private final Map<Material, Integer> writePaletteIndex = new EnumMap<>(Material.class);
+    private final List<Material> writePalette = new ArrayList<>();
+
+    /**
+     * Create a new region storage
+     *
+     * @param folder   Folder the region files are kept in
+     * @param slotSize Size of a slot in bytes, storages which already exist keep the size they were created with
+     * @param writer   Writes a machine, starting with its UUID
+     * @param reader   Reads a machine written by the writer
+     */
+    public RegionMachineStorage(@NotNull File folder, int slotSize, @NotNull BinaryMachineStorage.Writer<M> writer,
+                                @NotNull BinaryMachineStorage.Reader<M> reader) {
+        if (slotSize <= SLOT_HEADER + 16) {
+            throw new IllegalArgumentException("Slot size is too small: " + slotSize);
+        }
+        this.folder = folder;
+        this.paletteFile = new File(folder, "palette.dat");
+        this.overflowFile = new File(folder, "overflow.dat");
+        this.slotSize = slotSize;
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    private void open() throws IOException {
+        if (this.opened) return;
+        try {
+            readFiles();
+        } catch (IOException | RuntimeException e) {
+            // Never write over the files with a partial index, the next call tries again
+            reset();
+            throw e;
+        }
+        this.opened = true;
+    }
+
+    // Drop everything read from the files
+    private void reset() {
+        this.regions.clear();
+        this.index.clear();
+        this.freeCount = 0;
+        this.overflow.clear();
+        this.active.clear();
+        this.palette = new Material[0];
+        this.writePalette.clear();
+        this.writePaletteIndex.clear();
+        this.opened = false;
+    }
+
+    private void readFiles() throws IOException {
+        if (this.paletteFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.paletteFile)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a region storage: " + this.folder);
+                }
+                int version = in.readUnsignedShort();
+                if (version > FORMAT_VERSION) {
+                    throw new IOException("Unsupported format version " + version + " of " + this.folder);
+                }
+                this.slotSize = in.readInt();
+                String[] names = new String[in.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = in.readUTF();
+                }
+                // Materials which don't exist anymore keep their index, so their items are read as null
+                this.palette = new Material[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    Material material = Material.getMaterial(names[i]);
+                    this.palette[i] = material;
+                    this.writePalette.add(material);
+                    if (material != null) {
+                        this.writePaletteIndex.putIfAbsent(material, i);
+                    }
+                }
+            }
+        }
+
+        for (int region = 0; getRegionFile(region).exists(); region++) {
+            MappedByteBuffer buffer = map(region);
+            int first = region * SLOTS_PER_REGION;
+            for (int i = SLOTS_PER_REGION - 1; i >= 0; i--) {
+                int position = i * this.slotSize;
+                byte flag = buffer.get(position);
+                if (flag != FREE) {
+                    long most = buffer.getLong(position + SLOT_HEADER);
+                    long least = buffer.getLong(position + SLOT_HEADER + 8);
+                    UUID uuid = new UUID(most, least);
+                    this.index.put(uuid, first + i);
+                    if (flag == ACTIVE) this.active.add(uuid);
+                } else {
+                    pushFree(first + i);
+                }
+            }
+        }
+
+        if (this.overflowFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.overflowFile)))) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    UUID uuid = new UUID(in.readLong(), in.readLong());
+                    if (in.readBoolean()) this.active.add(uuid);
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    this.overflow.put(uuid, bytes);
+                }
+            }
+        }
+    }
+
+    private MappedByteBuffer map(int region) throws IOException {
+        File file = getRegionFile(region);
+        long size = (long) SLOTS_PER_REGION * this.slotSize;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mappings stay valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.regions.add(buffer);
+            return buffer;
+        }
+    }
+
+    private File getRegionFile(int region) {
+        return new File(this.folder, "region-" + region + ".dat");
+    }
+
+    private void pushFree(int slot) {
+        if (this.freeCount == this.freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(this.freeSlots, Math.max(SLOTS_PER_REGION, this.freeCount * 2));
+        }
+        this.freeSlots[this.freeCount++] = slot;
+    }
+
+    private int allocate() throws IOException {
+        if (this.freeCount == 0) {
+            int region = this.regions.size();
+            map(region);
+            for (int i = SLOTS_PER_REGION - 1; i >= 0; i--) {
+                pushFree(region * SLOTS_PER_REGION + i);
+            }
+        }
+        return this.freeSlots[--this.freeCount];
+    }
+
+    private void free(int slot) {
+        MappedByteBuffer buffer = this.regions.get(slot / SLOTS_PER_REGION);
+        buffer.put((slot % SLOTS_PER_REGION) * this.slotSize, FREE);
+        pushFree(slot);
+    }
+
+    /**
+     * Check whether a machine is stored
+     * <p>Machines which were saved but aren't written yet are included.</p>
+     *
+     * @param uuid ID of the machine
+     * @return True if the machine is stored
+     */
+    public synchronized boolean contains(@NotNull UUID uuid) {
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        if (this.removed.contains(uuid)) return false;
+        if (this.saved.containsKey(uuid) || this.writing.containsKey(uuid)) return true;
+        if (this.writingRemoved.contains(uuid)) return false;
+        return this.index.get(uuid) >= 0 || this.overflow.containsKey(uuid);
+    }
+
+    /**
+     * Get the amount of machines written to this storage
+     *
+     * @return Amount of machines
+     */
+    public synchronized int size() {
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        return this.index.size() + this.overflow.size();
+    }
+
+    /**
+     * Get the IDs of machines which weren't idle when they were written
+     *
+     * @return IDs of active machines
+     */
+    public synchronized @NotNull Collection<UUID> getActiveIds() {
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(this.active);
+    }
+
+    /**
+     * Read a single machine
+     * <p>A new object is read every time, the storage doesn't keep machines.
+     * Machines which were saved but aren't written yet are copied from what was saved.</p>
+     *
+     * @param uuid ID of the machine
+     * @return Machine which was read, or null if it isn't stored or couldn't be read
+     */
+    public @Nullable M read(@NotNull UUID uuid) {
+        byte[] bytes;
+        Material[] palette;
+        M pending;
+        synchronized (this) {
+            try {
+                open();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            if (this.removed.contains(uuid)) return null;
+            pending = this.saved.get(uuid);
+            if (pending == null) {
+                if (this.writingRemoved.contains(uuid)) return null;
+                pending = this.writing.get(uuid);
+            }
+            bytes = pending == null ? this.overflow.get(uuid) : null;
+            if (pending == null && bytes == null) {
+                int slot = this.index.get(uuid);
+                if (slot < 0) return null;
+                bytes = readSlot(slot);
+                if (bytes == null) return null;
+            }
+            palette = this.palette;
+        }
+        if (pending != null) {
+            return copy(pending);
+        }
+        return decode(bytes, palette);
+    }
+
+    /**
+     * Read several machines, decoding them in parallel
+     * <p>Like {@link #read(UUID)}, machines which aren't stored or couldn't be read are left out.</p>
+     *
+     * @param uuids IDs of the machines
+     * @return Machines which were read
+     */
+    public @NotNull List<M> readAll(@NotNull Collection<UUID> uuids) {
+        List<M> machines;
+        try {
+            machines = ParallelDecoder.decode(this.folder.getName(), new ArrayList<>(uuids), this::read);
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.damaged = true;
+            return new ArrayList<>();
+        }
+        machines.removeIf(Objects::isNull);
+        return machines;
+    }
+
+    private byte[] readSlot(int slot) {
+        MappedByteBuffer buffer = this.regions.get(slot / SLOTS_PER_REGION);
+        int position = (slot % SLOTS_PER_REGION) * this.slotSize;
+        int length = buffer.getShort(position + 1) & 0xFFFF;
+        int crc = buffer.getInt(position + 3);
+        if (length > this.slotSize - SLOT_HEADER) {
+            Util.error("&cDamaged slot " + slot + " in " + this.folder.getName());
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(position + SLOT_HEADER, bytes);
+        CRC32 check = new CRC32();
+        check.update(bytes);
+        if ((int) check.getValue() != crc) {
+            Util.error("&cDamaged slot " + slot + " in " + this.folder.getName());
+            return null;
+        }
+        return bytes;
+    }
+
+    // Saved machines aren't changed anymore, so they can be written on any thread
+    private M copy(M machine) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.slotSize);
+            BinaryOutput output = new BinaryOutput(bytes);
+            this.writer.write(machine, output);
+            output.flush();
+            ByteArrayOutputStream paletteBytes = new ByteArrayOutputStream();
+            DataOutputStream paletteOutput = new DataOutputStream(paletteBytes);
+            output.writePalette(paletteOutput);
+            paletteOutput.flush();
+            DataInputStream paletteInput = new DataInputStream(new ByteArrayInputStream(paletteBytes.toByteArray()));
+            return decode(bytes.toByteArray(), BinaryInput.readPalette(paletteInput));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private M decode(byte[] bytes, Material[] palette) {
+        try {
+            BinaryInput input = new BinaryInput(new ByteArrayInputStream(bytes), FORMAT_VERSION, palette);
+            return this.reader.read(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public @NotNull Collection<M> load() {
+        List<UUID> ids = new ArrayList<>();
+        List<byte[]> records = new ArrayList<>();
+        Material[] palette;
+        synchronized (this) {
+            this.saved.clear();
+            this.removed.clear();
+            this.compacted = null;
+            this.damaged = false;
+            try {
+                open();
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.damaged = true;
+                Util.error("&cFailed to open " + this.folder.getName() + ", it won't be compacted");
+                return Collections.emptyList();
+            }
+            for (int region = 0; region < this.regions.size(); region++) {
+                MappedByteBuffer buffer = this.regions.get(region);
+                for (int i = 0; i < SLOTS_PER_REGION; i++) {
+                    int position = i * this.slotSize;
+                    if (buffer.get(position) == FREE) continue;
+                    byte[] bytes = readSlot(region * SLOTS_PER_REGION + i);
+                    if (bytes == null) {
+                        // Already logged, the slot is kept
+                        this.damaged = true;
+                        continue;
+                    }
+                    ids.add(new UUID(buffer.getLong(position + SLOT_HEADER), buffer.getLong(position + SLOT_HEADER + 8)));
+                    records.add(bytes);
+                }
+            }
+            ids.addAll(this.overflow.keySet());
+            records.addAll(this.overflow.values());
+            palette = this.palette;
+        }
+        List<M> machines;
+        try {
+            machines = ParallelDecoder.decode(this.folder.getName(), records, bytes -> decode(bytes, palette));
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.damaged = true;
+            Util.error("&cFailed to load " + this.folder.getName() + ", it won't be compacted");
+            return Collections.emptyList();
+        }
+        List<M> loaded = new ArrayList<>(machines.size());
+        for (int i = 0; i < machines.size(); i++) {
+            M machine = machines.get(i);
+            if (machine != null) {
+                loaded.add(machine);
+            } else {
+                this.damaged = true;
+                Util.error("&cFailed to read " + ids.get(i) + " from " + this.folder.getName() + ", its slot is kept");
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public synchronized void save(@NotNull M machine) {
+        UUID uuid = machine.getUniqueID();
+        this.removed.remove(uuid);
+        this.saved.put(uuid, machine);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.saved.remove(uuid);
+        this.removed.add(uuid);
+    }
+
+    @Override
+    public int getChangeCount() {
+        // Written in place, there is nothing to compact
+        return 0;
+    }
+
+    @Override
+    public boolean isDamaged() {
+        return this.damaged;
+    }
+
+    @Override
+    public synchronized void compact(@NotNull Collection<M> machines) {
+        if (this.damaged) {
+            // Machines which couldn't be read would be removed, only write the given ones
+            for (M machine : machines) {
+                save(machine);
+            }
+            return;
+        }
+        this.compacted = machines;
+        this.saved.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public synchronized @NotNull Write prepareWrite() {
+        // Written in place, so there is nothing to keep once they're written
+        Collection<M> compacted = this.compacted;
+        Map<UUID, M> saved = new LinkedHashMap<>(this.saved);
+        Set<UUID> removed = Collections.unmodifiableSet(new LinkedHashSet<>(this.removed));
+        this.compacted = null;
+        this.saved.clear();
+        this.removed.clear();
+        // Kept readable until they are written
+        Map<UUID, M> writing = new HashMap<>();
+        if (compacted != null) {
+            for (M machine : compacted) {
+                writing.put(machine.getUniqueID(), machine);
+            }
+        }
+        writing.putAll(saved);
+        this.writing = writing;
+        this.writingRemoved = removed;
+        return () -> {
+            try {
+                write(compacted, saved, removed);
+            } catch (IOException | RuntimeException e) {
+                requeue(compacted, saved, removed);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    this.writing = Collections.emptyMap();
+                    this.writingRemoved = Collections.emptySet();
+                }
+            }
+        };
+    }
+
+    // Changes made after a failed write take priority over it
+    private synchronized void requeue(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed) {
+        if (compacted != null && this.compacted == null) {
+            this.compacted = compacted;
+        }
+        for (Map.Entry<UUID, M> entry : saved.entrySet()) {
+            if (!this.saved.containsKey(entry.getKey()) && !this.removed.contains(entry.getKey())) {
+                this.saved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (UUID uuid : removed) {
+            if (!this.saved.containsKey(uuid)) {
+                this.removed.add(uuid);
+            }
+        }
+    }
+
+    private void write(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed) throws IOException {
+        Map<UUID, M> machines = new LinkedHashMap<>();
+        if (compacted != null) {
+            for (M machine : compacted) {
+                machines.put(machine.getUniqueID(), machine);
+            }
+        }
+        machines.putAll(saved);
+        removed = new LinkedHashSet<>(removed);
+        removed.removeAll(machines.keySet());
+        Files.createDirectories(this.folder.toPath());
+
+        synchronized (this) {
+            open();
+            if (compacted != null) {
+                // Everything which isn't in the compaction is gone
+                for (UUID uuid : this.index.ids()) {
+                    if (!machines.containsKey(uuid)) removed.add(uuid);
+                }
+                for (UUID uuid : this.overflow.keySet()) {
+                    if (!machines.containsKey(uuid)) removed.add(uuid);
+                }
+            }
+        }
+
+        // Encoded outside the lock, reads aren't held up by it
+        int paletteSize = this.writePalette.size();
+        Map<UUID, byte[]> encoded = new LinkedHashMap<>();
+        Set<UUID> active = new HashSet<>();
+        for (M machine : machines.values()) {
+            if (!machine.isIdle()) active.add(machine.getUniqueID());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.slotSize);
+            BinaryOutput output = new BinaryOutput(bytes, this.writePaletteIndex, this.writePalette);
+            this.writer.write(machine, output);
+            output.flush();
+            encoded.put(machine.getUniqueID(), bytes.toByteArray());
+        }
+        // Materials have to be known before anything using them is written
+        if (this.writePalette.size() != paletteSize || !this.paletteFile.exists()) {
+            writePalette();
+        }
+
+        boolean overflowChanged = false;
+        Set<MappedByteBuffer> touched = Collections.newSetFromMap(new IdentityHashMap<>());
+        synchronized (this) {
+            this.palette = this.writePalette.toArray(new Material[0]);
+            for (Map.Entry<UUID, byte[]> entry : encoded.entrySet()) {
+                UUID uuid = entry.getKey();
+                byte[] bytes = entry.getValue();
+                int slot = this.index.get(uuid);
+                boolean isActive = active.contains(uuid);
+                if (isActive) {
+                    this.active.add(uuid);
+                } else {
+                    this.active.remove(uuid);
+                }
+                if (bytes.length > this.slotSize - SLOT_HEADER) {
+                    if (slot >= 0) {
+                        free(slot);
+                        this.index.remove(uuid);
+                        touched.add(this.regions.get(slot / SLOTS_PER_REGION));
+                    }
+                    this.overflow.put(uuid, bytes);
+                    overflowChanged = true;
+                    continue;
+                }
+                if (this.overflow.remove(uuid) != null) {
+                    overflowChanged = true;
+                }
+                if (slot < 0) {
+                    slot = allocate();
+                    this.index.put(uuid, slot);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                MappedByteBuffer buffer = this.regions.get(slot / SLOTS_PER_REGION);
+                int position = (slot % SLOTS_PER_REGION) * this.slotSize;
+                buffer.putShort(position + 1, (short) bytes.length);
+                buffer.putInt(position + 3, (int) crc.getValue());
+                buffer.put(position + SLOT_HEADER, bytes);
+                buffer.put(position, isActive ? ACTIVE : USED);
+                touched.add(buffer);
+            }
+            for (UUID uuid : removed) {
+                this.active.remove(uuid);
+                int slot = this.index.get(uuid);
+                if (slot >= 0) {
+                    free(slot);
+                    this.index.remove(uuid);
+                    touched.add(this.regions.get(slot / SLOTS_PER_REGION));
+                }
+                if (this.overflow.remove(uuid) != null) {
+                    overflowChanged = true;
+                }
+            }
+        }
+        for (MappedByteBuffer buffer : touched) {
+            buffer.force();
+        }
+        if (overflowChanged) {
+            writeOverflow();
+        }
+    }
+
+    private void writePalette() throws IOException {
+        StorageFiles.write(this.paletteFile, stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeInt(this.slotSize);
+            out.writeInt(this.writePalette.size());
+            for (Material material : this.writePalette) {
+                // Materials which don't exist on this server version keep their index
+                out.writeUTF(material != null ? material.name() : "");
+            }
+            out.flush();
+        });
+    }
+
+    private void writeOverflow() throws IOException {
+        Map<UUID, byte[]> overflow;
+        Set<UUID> active;
+        synchronized (this) {
+            overflow = new LinkedHashMap<>(this.overflow);
+            active = new HashSet<>(this.active);
+        }
+        StorageFiles.write(this.overflowFile, stream -> {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(overflow.size());
+            for (Map.Entry<UUID, byte[]> entry : overflow.entrySet()) {
+                out.writeLong(entry.getKey().getMostSignificantBits());
+                out.writeLong(entry.getKey().getLeastSignificantBits());
+                out.writeBoolean(active.contains(entry.getKey()));
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+        });
+    }
+
+    @Override
+    public boolean exists() {
+        return this.paletteFile.exists();
+    }
+
+    @Override
+    public synchronized void delete() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        reset();
+        File[] files = this.folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.folder.delete();
+    }
+
+}
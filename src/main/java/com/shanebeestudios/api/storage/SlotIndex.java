@@ -0,0 +1,129 @@
+package com.shanebeestudios.api.storage;
+
+import java.util.*;
+
+/**
+ * Index of the slots machines are stored in, by their UUID
+ * <p>Open addressing on primitive arrays, so an entry takes a few dozen bytes instead of a map entry
+ * with a boxed UUID and slot.</p>
+ */
+final class SlotIndex {
+
+    private static final int EMPTY = -1;
+
+    private long[] most = new long[16];
+    private long[] least = new long[16];
+    private int[] slots = newSlots(16);
+    private int mask = 15;
+    private int size;
+
+    int size() {
+        return this.size;
+    }
+
+    int get(UUID uuid) {
+        int index = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return index < 0 ? EMPTY : this.slots[index];
+    }
+
+    void put(UUID uuid, int slot) {
+        long most = uuid.getMostSignificantBits();
+        long least = uuid.getLeastSignificantBits();
+        int index = find(most, least);
+        if (index >= 0) {
+            this.slots[index] = slot;
+            return;
+        }
+        if ((this.size + 1) * 4L > this.slots.length * 3L) {
+            resize(this.slots.length * 2);
+        }
+        index = hash(most, least);
+        while (this.slots[index] != EMPTY) {
+            index = (index + 1) & this.mask;
+        }
+        this.most[index] = most;
+        this.least[index] = least;
+        this.slots[index] = slot;
+        this.size++;
+    }
+
+    void remove(UUID uuid) {
+        int index = find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (index < 0) return;
+        this.slots[index] = EMPTY;
+        this.size--;
+        // Shift following entries back, so lookups don't stop at the gap
+        int next = index;
+        while (true) {
+            next = (next + 1) & this.mask;
+            if (this.slots[next] == EMPTY) return;
+            int home = hash(this.most[next], this.least[next]);
+            boolean between = index <= next ? index < home && home <= next : index < home || home <= next;
+            if (between) continue;
+            this.most[index] = this.most[next];
+            this.least[index] = this.least[next];
+            this.slots[index] = this.slots[next];
+            this.slots[next] = EMPTY;
+            index = next;
+        }
+    }
+
+    List<UUID> ids() {
+        List<UUID> ids = new ArrayList<>(this.size);
+        for (int i = 0; i < this.slots.length; i++) {
+            if (this.slots[i] != EMPTY) {
+                ids.add(new UUID(this.most[i], this.least[i]));
+            }
+        }
+        return ids;
+    }
+
+    void clear() {
+        Arrays.fill(this.slots, EMPTY);
+        this.size = 0;
+    }
+
+    private int find(long most, long least) {
+        int index = hash(most, least);
+        while (this.slots[index] != EMPTY) {
+            if (this.most[index] == most && this.least[index] == least) return index;
+            index = (index + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    private int hash(long most, long least) {
+        long hash = most ^ least;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash & this.mask;
+    }
+
+    private void resize(int capacity) {
+        long[] oldMost = this.most;
+        long[] oldLeast = this.least;
+        int[] oldSlots = this.slots;
+        this.most = new long[capacity];
+        this.least = new long[capacity];
+        this.slots = newSlots(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] == EMPTY) continue;
+            int index = hash(oldMost[i], oldLeast[i]);
+            while (this.slots[index] != EMPTY) {
+                index = (index + 1) & this.mask;
+            }
+            this.most[index] = oldMost[i];
+            this.least[index] = oldLeast[i];
+            this.slots[index] = oldSlots[i];
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+}
@@ -0,0 +1,351 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import com.shanebeestudios.api.util.Util;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * {@link MachineStorage} saving machines in a table of an SQLite database file
+ * <p>Each machine is a row with its UUID as primary key, its name, and its fields as a blob in the same format
+ * as a {@link BinaryMachineStorage}. Each blob carries its own palette of materials, so rows can be
+ * copied between databases. Machines which are saved are upserted in place, there is no changes file.</p>
+ * <p>The SQLite driver is bundled with the server, so the database file can be queried and backed up with
+ * any SQLite tooling.</p>
+ *
+ * @param <M> Type of machine stored
+ */
+public class SqlMachineStorage<M extends Machine> implements MachineStorage<M> {
+
+    /**
+     * Version of the format machines are written in, rows with a newer version can't be read
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private final File file;
+    private final String table;
+    private final BinaryMachineStorage.Writer<M> writer;
+    private final BinaryMachineStorage.Reader<M> reader;
+
+    // Guarded by this
+    private Connection connection;
+    private final Map<UUID, M> saved = new LinkedHashMap<>();
+    private final Set<UUID> removed = new LinkedHashSet<>();
+    private Collection<M> compacted;
+    // Whether the last load couldn't read every row, stale rows are never deleted then
+    private volatile boolean damaged;
+
+    /**
+     * Create a new SQLite storage
+     *
+     * @param file   Database file
+     * @param table  Name of the table machines are kept in
+     * @param writer Writes a machine
+     * @param reader Reads a machine written by the writer
+     */
+    public SqlMachineStorage(@NotNull File file, @NotNull String table, @NotNull BinaryMachineStorage.Writer<M> writer,
+                             @NotNull BinaryMachineStorage.Reader<M> reader) {
+        this.file = file;
+        this.table = table;
+        this.writer = writer;
+        this.reader = reader;
+    }
+
+    private Connection getConnection() throws SQLException {
+        if (this.connection == null) {
+            this.connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getAbsolutePath());
+            try (Statement statement = this.connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+            }
+        }
+        return this.connection;
+    }
+
+    // The table is created with the first write, a storage without it doesn't exist yet
+    private boolean hasTable() throws SQLException {
+        try (PreparedStatement statement = getConnection().prepareStatement(
+                "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?")) {
+            statement.setString(1, this.table);
+            try (ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    /**
+     * Read a single machine by its UUID
+     * <p>A new object is read every time, the storage doesn't keep machines.
+     * Machines which were saved but aren't written yet aren't included.</p>
+     *
+     * @param uuid ID of the machine
+     * @return Machine which was read, or null if it isn't stored or couldn't be read
+     */
+    public @Nullable M read(@NotNull UUID uuid) {
+        byte[] bytes;
+        synchronized (this) {
+            try {
+                if (!this.file.exists() || !hasTable()) return null;
+                try (PreparedStatement statement = getConnection().prepareStatement(
+                        "SELECT data FROM " + this.table + " WHERE uuid = ?")) {
+                    statement.setString(1, uuid.toString());
+                    try (ResultSet result = statement.executeQuery()) {
+                        if (!result.next()) return null;
+                        bytes = result.getBytes(1);
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        try {
+            return decode(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public @NotNull Collection<M> load() {
+        List<String> ids = new ArrayList<>();
+        List<byte[]> rows = new ArrayList<>();
+        synchronized (this) {
+            this.saved.clear();
+            this.removed.clear();
+            this.compacted = null;
+            this.damaged = false;
+            if (!this.file.exists()) return Collections.emptyList();
+            try {
+                if (!hasTable()) return Collections.emptyList();
+                try (Statement statement = getConnection().createStatement();
+                     ResultSet result = statement.executeQuery("SELECT uuid, data FROM " + this.table)) {
+                    while (result.next()) {
+                        ids.add(result.getString(1));
+                        rows.add(result.getBytes(2));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                this.damaged = true;
+                Util.error("&cFailed to load " + this.table + " from " + this.file.getName() + ", rows won't be deleted until it loads again");
+                return Collections.emptyList();
+            }
+        }
+        List<M> machines;
+        try {
+            machines = ParallelDecoder.decode(this.table, rows, this::decode);
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.damaged = true;
+            Util.error("&cFailed to load " + this.table + " from " + this.file.getName() + ", rows won't be deleted until it loads again");
+            return Collections.emptyList();
+        }
+        List<M> loaded = new ArrayList<>(machines.size());
+        for (int i = 0; i < machines.size(); i++) {
+            M machine = machines.get(i);
+            if (machine != null) {
+                loaded.add(machine);
+            } else {
+                this.damaged = true;
+                Util.error("&cFailed to read " + ids.get(i) + " from " + this.table + ", its row is kept");
+            }
+        }
+        return loaded;
+    }
+
+    private M decode(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int version = in.readUnsignedShort();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("Unsupported format version " + version + " in " + this.file.getName());
+        }
+        BinaryInput input = new BinaryInput(in, version, BinaryInput.readPalette(in));
+        return this.reader.read(input);
+    }
+
+    private byte[] encode(M machine) throws IOException {
+        // Records are written first, the palette is only known afterwards
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        BinaryOutput output = new BinaryOutput(record);
+        this.writer.write(machine, output);
+        output.flush();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeShort(FORMAT_VERSION);
+        output.writePalette(out);
+        out.flush();
+        record.writeTo(bytes);
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public synchronized void save(@NotNull M machine) {
+        UUID uuid = machine.getUniqueID();
+        this.removed.remove(uuid);
+        this.saved.put(uuid, machine);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.saved.remove(uuid);
+        this.removed.add(uuid);
+    }
+
+    @Override
+    public int getChangeCount() {
+        // Written in place, there is nothing to compact
+        return 0;
+    }
+
+    @Override
+    public boolean isDamaged() {
+        return this.damaged;
+    }
+
+    @Override
+    public synchronized void compact(@NotNull Collection<M> machines) {
+        if (this.damaged) {
+            // Rows which couldn't be read would be deleted, only upsert
+            for (M machine : machines) {
+                save(machine);
+            }
+            return;
+        }
+        this.compacted = machines;
+        this.saved.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public synchronized @NotNull Write prepareWrite() {
+        // Written in place, so there is nothing to keep once they're written
+        Collection<M> compacted = this.compacted;
+        Map<UUID, M> saved = new LinkedHashMap<>(this.saved);
+        Set<UUID> removed = new LinkedHashSet<>(this.removed);
+        this.compacted = null;
+        this.saved.clear();
+        this.removed.clear();
+        return () -> {
+            try {
+                write(compacted, saved, removed);
+            } catch (IOException | RuntimeException e) {
+                requeue(compacted, saved, removed);
+                throw e;
+            }
+        };
+    }
+
+    // Changes made after a failed write take priority over it
+    private synchronized void requeue(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed) {
+        if (compacted != null && this.compacted == null) {
+            this.compacted = compacted;
+        }
+        for (Map.Entry<UUID, M> entry : saved.entrySet()) {
+            if (!this.saved.containsKey(entry.getKey()) && !this.removed.contains(entry.getKey())) {
+                this.saved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (UUID uuid : removed) {
+            if (!this.saved.containsKey(uuid)) {
+                this.removed.add(uuid);
+            }
+        }
+    }
+
+    private void write(Collection<M> compacted, Map<UUID, M> saved, Set<UUID> removed) throws IOException {
+        Map<UUID, M> machines = new LinkedHashMap<>();
+        if (compacted != null) {
+            for (M machine : compacted) {
+                machines.put(machine.getUniqueID(), machine);
+            }
+        }
+        machines.putAll(saved);
+        if (machines.isEmpty() && removed.isEmpty() && compacted == null) return;
+
+        // Encoded outside the lock, reads aren't held up by it
+        Map<M, byte[]> encoded = new LinkedHashMap<>();
+        for (M machine : machines.values()) {
+            encoded.put(machine, encode(machine));
+        }
+
+        synchronized (this) {
+            try {
+                Connection connection = getConnection();
+                connection.setAutoCommit(false);
+                try {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("CREATE TABLE IF NOT EXISTS " + this.table +
+                                " (uuid TEXT PRIMARY KEY, name TEXT, data BLOB NOT NULL) WITHOUT ROWID");
+                        if (compacted != null) {
+                            statement.execute("DELETE FROM " + this.table);
+                        }
+                    }
+                    try (PreparedStatement upsert = connection.prepareStatement("INSERT INTO " + this.table +
+                            " (uuid, name, data) VALUES (?, ?, ?) ON CONFLICT (uuid) DO UPDATE SET name = excluded.name, data = excluded.data")) {
+                        for (Map.Entry<M, byte[]> entry : encoded.entrySet()) {
+                            upsert.setString(1, entry.getKey().getUniqueID().toString());
+                            upsert.setString(2, entry.getKey().getName());
+                            upsert.setBytes(3, entry.getValue());
+                            upsert.addBatch();
+                        }
+                        upsert.executeBatch();
+                    }
+                    try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + this.table + " WHERE uuid = ?")) {
+                        for (UUID uuid : removed) {
+                            if (machines.containsKey(uuid)) continue;
+                            delete.setString(1, uuid.toString());
+                            delete.addBatch();
+                        }
+                        delete.executeBatch();
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                throw new IOException("Failed to write " + this.table + " to " + this.file.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        if (!this.file.exists()) return false;
+        try {
+            return hasTable();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.connection == null) return;
+        try {
+            this.connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        this.connection = null;
+    }
+
+    @Override
+    public synchronized void delete() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        close();
+        this.file.delete();
+        new File(this.file.getPath() + "-wal").delete();
+        new File(this.file.getPath() + "-shm").delete();
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.shanebeestudios.api.storage;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Writing storage files
+ */
+final class StorageFiles {
+
+    private StorageFiles() {
+    }
+
+    /**
+     * Replace a file with what is written to it
+     * <p>Everything is written to a temporary file first, which then replaces the file.
+     * A write which fails or is interrupted never leaves a partially written file behind.</p>
+     *
+     * @param file   File to replace
+     * @param output Writes the new contents
+     * @throws IOException If writing fails
+     */
+    static void write(File file, Output output) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+                BufferedOutputStream out = new BufferedOutputStream(stream);
+                output.write(out);
+                out.flush();
+                stream.getFD().sync();
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @FunctionalInterface
+    interface Output {
+
+        void write(OutputStream out) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.VirtualFurnaceAPI;
+
+/**
+ * Types of storage {@link com.shanebeestudios.api.machine.Machine Machines} can be saved in
+ * <p>Chosen when creating the {@link VirtualFurnaceAPI}</p>
+ */
+public enum StorageType {
+
+    /**
+     * Machines are saved in YAML files, this is the default
+     */
+    YAML,
+    /**
+     * Machines are saved in compact binary files
+     * <p>Existing YAML files are migrated the first time this is used.</p>
+     */
+    BINARY,
+    /**
+     * Machines are saved in fixed-size slots of memory-mapped region files, meant for large amounts of machines
+     * <p>Furnaces which are idle are only loaded when they are accessed,
+     * see {@link com.shanebeestudios.api.FurnaceManager#isLoadedOnAccess()}.
+     * Existing YAML files are migrated the first time this is used.</p>
+     */
+    REGION,
+    /**
+     * Machines are saved in an SQLite database file, which can be queried and backed up with SQLite tooling
+     * <p>Existing YAML files are migrated the first time this is used.</p>
+     */
+    SQLITE,
+    /**
+     * Machines are split into bucket files by the hash of their UUID, each with its own checksum
+     * <p>Only buckets with changed machines are rewritten, and a damaged bucket only affects the machines in it.
+     * Existing YAML files are migrated the first time this is used.</p>
+     */
+    BUCKET
+
+}
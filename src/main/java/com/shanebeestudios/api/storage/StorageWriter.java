@@ -0,0 +1,83 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.util.Util;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.*;
+
+/**
+ * Writes a {@link MachineStorage} to file off the calling thread
+ * <p>Writes run one at a time on a dedicated thread. Requests made while a write is waiting to start
+ * are coalesced into that write, which picks up everything saved up to the moment it starts.</p>
+ */
+public class StorageWriter {
+
+    private final MachineStorage<?> storage;
+    private final String name;
+    private final ExecutorService executor;
+    // Write which was requested but didn't start yet
+    private CompletableFuture<Void> queued;
+
+    /**
+     * Create a new writer
+     *
+     * @param storage Storage to write
+     * @param name    Name of what is stored, used for the thread name
+     */
+    public StorageWriter(@NotNull MachineStorage<?> storage, @NotNull String name) {
+        this.storage = storage;
+        this.name = name;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VirtualFurnace-Save-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Request a write of the storage
+     *
+     * @return Future completed once everything saved before this call is written
+     */
+    public synchronized @NotNull CompletableFuture<Void> requestWrite() {
+        if (this.queued != null) return this.queued;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> write(future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        this.queued = future;
+        return future;
+    }
+
+    private void write(CompletableFuture<Void> future) {
+        synchronized (this) {
+            // Requests from now on may have saved more than this write picks up
+            this.queued = null;
+        }
+        try {
+            this.storage.prepareWrite().write();
+            future.complete(null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop this writer, waiting for requested writes to finish
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                Util.error("&cTimed out saving " + this.name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
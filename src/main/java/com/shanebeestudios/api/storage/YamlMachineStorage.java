@@ -0,0 +1,194 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.Machine;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * {@link MachineStorage} saving machines in YAML files
+ *
+ * @param <M> Type of machine stored
+ */
+public class YamlMachineStorage<M extends Machine> implements MachineStorage<M> {
+
+    private final File file;
+    private final File changesFile;
+    private final String path;
+    private final Class<M> type;
+    private final List<String> header;
+    // Machines saved/removed since the full file was last written
+    private final Map<UUID, M> saved = new LinkedHashMap<>();
+    private final Set<UUID> removed = new LinkedHashSet<>();
+    // Machines waiting to be written to the full file
+    private Collection<M> compacted;
+
+    /**
+     * Create a new YAML storage
+     *
+     * @param file        Full file of the storage
+     * @param changesFile File for the changes since the last compaction
+     * @param path        Path of the section machines are saved in
+     * @param type        Class of the machines, these have to be registered for configuration serialization
+     * @param header      Header of the full file
+     */
+    public YamlMachineStorage(@NotNull File file, @NotNull File changesFile, @NotNull String path,
+                              @NotNull Class<M> type, @NotNull String... header) {
+        this.file = file;
+        this.changesFile = changesFile;
+        this.path = path;
+        this.type = type;
+        this.header = Arrays.asList(header);
+    }
+
+    @Override
+    public synchronized @NotNull Collection<M> load() {
+        Map<UUID, M> machines = new LinkedHashMap<>();
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        if (this.file.exists()) {
+            machines.putAll(load(YamlConfiguration.loadConfiguration(this.file)));
+        }
+        // Changes since the last compaction go on top of the full file
+        if (this.changesFile.exists()) {
+            FileConfiguration changesConfig = YamlConfiguration.loadConfiguration(this.changesFile);
+            this.saved.putAll(load(changesConfig));
+            for (M machine : this.saved.values()) {
+                machine.markDirty();
+            }
+            machines.putAll(this.saved);
+            for (String removed : changesConfig.getStringList("removed")) {
+                UUID uuid = UUID.fromString(removed);
+                this.removed.add(uuid);
+                machines.remove(uuid);
+            }
+        }
+        return machines.values();
+    }
+
+    private Map<UUID, M> load(FileConfiguration config) {
+        Map<UUID, M> machines = new LinkedHashMap<>();
+        ConfigurationSection section = config.getConfigurationSection(this.path);
+        if (section != null) {
+            for (String string : section.getKeys(true)) {
+                Object machine = section.get(string);
+                if (this.type.isInstance(machine)) {
+                    machines.put(UUID.fromString(string), this.type.cast(machine));
+                }
+            }
+        }
+        return machines;
+    }
+
+    @Override
+    public synchronized void save(@NotNull M machine) {
+        UUID uuid = machine.getUniqueID();
+        this.removed.remove(uuid);
+        this.saved.put(uuid, machine);
+    }
+
+    @Override
+    public synchronized void remove(@NotNull UUID uuid) {
+        this.saved.remove(uuid);
+        this.removed.add(uuid);
+    }
+
+    @Override
+    public synchronized int getChangeCount() {
+        return this.saved.size() + this.removed.size();
+    }
+
+    @Override
+    public synchronized void compact(@NotNull Collection<M> machines) {
+        this.compacted = machines;
+        this.saved.clear();
+        this.removed.clear();
+    }
+
+    @Override
+    public synchronized @NotNull Write prepareWrite() {
+        Collection<M> compacted = this.compacted;
+        YamlConfiguration changesConfig = null;
+        if (!this.saved.isEmpty() || !this.removed.isEmpty()) {
+            changesConfig = new YamlConfiguration();
+            for (M machine : this.saved.values()) {
+                changesConfig.set(this.path + "." + machine.getUniqueID(), machine);
+            }
+            if (!this.removed.isEmpty()) {
+                List<String> removed = new ArrayList<>(this.removed.size());
+                for (UUID uuid : this.removed) {
+                    removed.add(uuid.toString());
+                }
+                changesConfig.set("removed", removed);
+            }
+        }
+        YamlConfiguration changes = changesConfig;
+        return () -> {
+            if (compacted != null) {
+                YamlConfiguration config = new YamlConfiguration();
+                config.options().setHeader(this.header);
+                for (M machine : compacted) {
+                    config.set(this.path + "." + machine.getUniqueID(), machine);
+                }
+                write(this.file, config);
+                synchronized (this) {
+                    if (this.compacted == compacted) {
+                        this.compacted = null;
+                    }
+                }
+            }
+            if (changes != null) {
+                write(this.changesFile, changes);
+            } else {
+                Files.deleteIfExists(this.changesFile.toPath());
+            }
+        };
+    }
+
+    private static void write(File file, FileConfiguration config) throws IOException {
+        byte[] yaml = config.saveToString().getBytes(StandardCharsets.UTF_8);
+        StorageFiles.write(file, out -> out.write(yaml));
+    }
+
+    @Override
+    public boolean exists() {
+        return this.file.exists();
+    }
+
+    @Override
+    public synchronized void delete() {
+        this.saved.clear();
+        this.removed.clear();
+        this.compacted = null;
+        this.file.delete();
+        this.changesFile.delete();
+    }
+
+    /**
+     * Move all machines of this storage to another storage
+     * <p>The machines are written to the other storage, after which the files of this storage
+     * are renamed with a ".migrated" suffix, so they aren't migrated again.</p>
+     *
+     * @param storage Storage to move the machines to
+     * @return Amount of machines moved
+     * @throws IOException If writing to the other storage fails, the files of this storage are left alone
+     */
+    public int migrateTo(@NotNull MachineStorage<M> storage) throws IOException {
+        Collection<M> machines = load();
+        storage.compact(machines);
+        storage.prepareWrite().write();
+        for (File file : new File[]{this.file, this.changesFile}) {
+            if (file.exists()) {
+                file.renameTo(new File(file.getParentFile(), file.getName() + ".migrated"));
+            }
+        }
+        return machines.size();
+    }
+
+}
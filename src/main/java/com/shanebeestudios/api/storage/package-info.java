@@ -0,0 +1,4 @@
+/**
+ * Storage backends for {@link com.shanebeestudios.api.machine.Machine Machines}
+ */
+package com.shanebeestudios.api.storage;
@@ -1,27 +1,97 @@
 package com.shanebeestudios.api.task;
 
 import com.shanebeestudios.api.*;
+import com.shanebeestudios.api.event.Event;
+import com.shanebeestudios.api.event.machine.*;
 import com.shanebeestudios.api.machine.*;
+import com.shanebeestudios.api.util.Util;
 import org.bukkit.Bukkit;
 import org.bukkit.scheduler.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 /**
  * Timer for ticking furnaces
+ * <p>Only machines which are awake get ticked. A machine which can't make any progress
+ * (see {@link Machine#isIdle()}) is put to sleep until it is {@link Machine#wake() woken} again.</p>
+ * <p>With {@link #setFastForward(boolean) fast forward} enabled, a machine which is only counting down
+ * timers is parked until its next state change, and the skipped ticks are applied in one step
+ * when it resumes or is woken.</p>
+ * <p>Without fast forward, a furnace which is only counting down timers is moved into a {@link FurnaceLane},
+ * which keeps its timers in arrays and ticks them all in one scan. This is only done while nothing listens
+ * to the per tick {@link FurnaceFuelBurningEvent burning} and {@link FurnaceCookingEvent cooking} events.</p>
+ * <p>Awake machines are split into shards. With a {@link #setParallelism(int) parallelism} above 1
+ * the shards are ticked on a pool of worker threads, and each tick waits for all shards to finish
+ * before the next one can start.</p>
+ * <p>With a {@link #setTickBudget(long) tick budget} each shard stops ticking once its time is up,
+ * the next tick continues where it stopped. Machines which were deferred are given the ticks they
+ * missed when they are reached again.</p>
+ * <p>With an {@link #setEventBatchWindow(int) event batch window}, what happens in machines is collected
+ * and called as one {@link MachineTickBatchEvent} per window.</p>
  */
 public class FurnaceTick extends BukkitRunnable {
 
     private final FurnaceManager furnaceManager;
     private final BrewingManager brewingManager;
+    private final RecipeManager recipeManager;
     private final VirtualFurnaceAPI virtualFurnaceAPI;
+    // Awake machines split into shards, each shard is only touched by one thread at a time
+    private Shard[] shards = {new Shard()};
+    private ExecutorService executor;
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    // Thread holding the tick guard, running a tick or settling, null in between
+    private volatile Thread tickThread;
+    private volatile boolean cancelled;
+    // Machines woken/removed since the last tick, may be added to from any thread
+    private final Queue<Machine> wakeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Machine> forgetQueue = new ConcurrentLinkedQueue<>();
+    // Fast forwarded machines, ordered by the tick they resume at
+    private final PriorityQueue<Parked> parkedQueue = new PriorityQueue<>(Comparator.comparingLong(parked -> parked.resumeAt));
+    private final Map<Machine, Parked> parkedMachines = new IdentityHashMap<>();
+    // Furnaces counting down without fast forward, only touched by the tick thread
+    private final FurnaceLane lane = new FurnaceLane();
+    private volatile boolean laning;
+    private volatile boolean fastForward;
+    private volatile int parallelism = 1;
+    private volatile ToIntFunction<Machine> shardSelector;
+    private int shardedParallelism = 1;
+    private ToIntFunction<Machine> shardedSelector;
+    private final AtomicLong overrunTicks = new AtomicLong();
+    private volatile int awakeCount;
+    private volatile long currentTick;
+    private volatile long tickBudget;
+    private volatile int deferredCount;
+    // Batched events, machines record into the buffer of the thread they are ticked on
+    private final List<EventBuffer> eventBuffers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<EventBuffer> eventBuffer = ThreadLocal.withInitial(() -> {
+        EventBuffer buffer = new EventBuffer(Thread.currentThread());
+        this.eventBuffers.add(buffer);
+        return buffer;
+    });
+    private final EventBuffer eventBatch = new EventBuffer(null);
+    private volatile int eventBatchWindow;
+    private volatile boolean batchingEvents;
+    private int eventBatchTicks;
+    private volatile int journalInterval = 20;
+    private int journalTicks;
+    private int registryVersion;
     private int tick;
     private int id;
-    private boolean running;
+    // Cleared from the main thread to stop a tick, read by the tick and shard threads
+    private volatile boolean running;
 
     public FurnaceTick(VirtualFurnaceAPI virtualFurnaceAPI) {
         this.virtualFurnaceAPI = virtualFurnaceAPI;
         this.furnaceManager = virtualFurnaceAPI.getFurnaceManager();
         this.brewingManager = virtualFurnaceAPI.getBrewingManager();
+        this.recipeManager = virtualFurnaceAPI.getRecipeManager();
+        this.registryVersion = this.recipeManager.getRegistryVersion();
         this.tick = 0;
+        wakeAll();
     }
 
     public void start() {
@@ -29,39 +99,700 @@ public class FurnaceTick extends BukkitRunnable {
         id = task.getTaskId();
     }
 
+    /**
+     * Wake a machine so it will be ticked again from the next tick on
+     * <p>Machines which aren't registered with a manager are ignored.
+     * Generally {@link Machine#wake()} should be used instead.</p>
+     *
+     * @param machine Machine to wake
+     */
+    public void wake(@NotNull Machine machine) {
+        this.wakeQueue.add(machine);
+    }
+
+    /**
+     * Stop ticking a machine from the next tick on
+     * <p>This is called when a machine is removed from its manager.</p>
+     *
+     * @param machine Machine to forget
+     */
+    public void forget(@NotNull Machine machine) {
+        this.forgetQueue.add(machine);
+    }
+
+    /**
+     * Wake all registered machines
+     */
+    public void wakeAll() {
+        this.wakeQueue.addAll(this.furnaceManager.getAllFurnaces());
+        this.wakeQueue.addAll(this.brewingManager.getAllStands());
+    }
+
+    /**
+     * Set whether machines nobody is viewing should be fast forwarded
+     * <p>A fast forwarded machine isn't ticked until its next state change (a cook finishing, fuel running out...),
+     * the ticks in between are applied in one step. The end result is the same as ticking every tick,
+     * but the per tick {@link com.shanebeestudios.api.event.machine.FurnaceFuelBurningEvent burning}
+     * and {@link com.shanebeestudios.api.event.machine.FurnaceCookingEvent cooking} events
+     * are not called for the skipped ticks.</p>
+     *
+     * @param fastForward Whether to fast forward machines
+     */
+    public void setFastForward(boolean fastForward) {
+        this.fastForward = fastForward;
+    }
+
+    /**
+     * Check whether machines nobody is viewing are fast forwarded
+     *
+     * @return True if fast forwarding
+     */
+    public boolean isFastForward() {
+        return this.fastForward;
+    }
+
+    /**
+     * Set the amount of threads machines are ticked on
+     * <p>Machines are split into this many shards, which are ticked in parallel.
+     * As machines are then ticked off the tick thread, listeners of machine events
+     * have to be thread safe. Takes effect from the next tick on.</p>
+     *
+     * @param parallelism Amount of threads, 1 to tick all machines on the tick thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Get the amount of threads machines are ticked on
+     *
+     * @return Amount of threads
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Set how machines are grouped into shards
+     * <p>Machines with the same group are always ticked on the same thread.
+     * The group of a machine may not change while it is registered.
+     * By default machines are spread by the hash of their unique ID.
+     * Takes effect from the next tick on.</p>
+     *
+     * @param shardSelector Function returning the group of a machine, or null for the default
+     */
+    public void setShardSelector(@Nullable ToIntFunction<Machine> shardSelector) {
+        this.shardSelector = shardSelector;
+    }
+
+    /**
+     * Set the time each shard may spend ticking machines per tick
+     * <p>Once the budget is used up, the remaining machines are deferred to the next tick,
+     * which continues where this one stopped. Deferred machines are given all ticks they missed
+     * when they are reached, so their progress isn't slowed down, only delayed.
+     * At least one machine per shard is ticked every tick.</p>
+     *
+     * @param tickBudget Budget in nanoseconds, 0 for no budget
+     */
+    public void setTickBudget(long tickBudget) {
+        if (tickBudget < 0) {
+            throw new IllegalArgumentException("Tick budget can not be negative");
+        }
+        this.tickBudget = tickBudget;
+    }
+
+    /**
+     * Get the time each shard may spend ticking machines per tick
+     *
+     * @return Budget in nanoseconds, 0 if there is no budget
+     */
+    public long getTickBudget() {
+        return this.tickBudget;
+    }
+
+    /**
+     * Get the amount of machines which were deferred to the next tick during the last tick
+     * <p>Machines are only deferred when a {@link #setTickBudget(long) tick budget} is set.</p>
+     *
+     * @return Amount of deferred machines
+     */
+    public int getDeferredCount() {
+        return this.deferredCount;
+    }
+
+    /**
+     * Set the amount of ticks a {@link MachineTickBatchEvent} collects before it is called
+     * <p>The event is only collected while listeners are registered to it.</p>
+     *
+     * @param eventBatchWindow Amount of ticks per batch, 0 to not call the event
+     */
+    public void setEventBatchWindow(int eventBatchWindow) {
+        if (eventBatchWindow < 0) {
+            throw new IllegalArgumentException("Event batch window can not be negative");
+        }
+        this.eventBatchWindow = eventBatchWindow;
+    }
+
+    /**
+     * Get the amount of ticks a {@link MachineTickBatchEvent} collects before it is called
+     *
+     * @return Amount of ticks per batch, 0 if the event isn't called
+     */
+    public int getEventBatchWindow() {
+        return this.eventBatchWindow;
+    }
+
+    /**
+     * Set how often machines which changed are recorded in the journal
+     * <p>The journal keeps changes made in between saves, so they aren't lost when the server stops without saving.
+     * A shorter interval loses less progress, but writes more often.</p>
+     *
+     * @param journalInterval Amount of ticks in between journal records, 0 to only journal created and removed machines
+     */
+    public void setJournalInterval(int journalInterval) {
+        if (journalInterval < 0) {
+            throw new IllegalArgumentException("Journal interval can not be negative");
+        }
+        this.journalInterval = journalInterval;
+    }
+
+    /**
+     * Get how often machines which changed are recorded in the journal
+     *
+     * @return Amount of ticks in between journal records, 0 if only created and removed machines are journaled
+     */
+    public int getJournalInterval() {
+        return this.journalInterval;
+    }
+
+    /**
+     * Check whether machines should record what happens in them for the {@link MachineTickBatchEvent}
+     *
+     * @return True if events are being batched
+     */
+    public boolean isBatchingEvents() {
+        return this.batchingEvents;
+    }
+
+    /**
+     * Record what happened in a machine for the {@link MachineTickBatchEvent}
+     * <p><b>Internal use only!</b> Called by machines while they are ticked.</p>
+     *
+     * @param machine Machine something happened in
+     * @param kind    What happened
+     * @param value   Value belonging to what happened
+     */
+    public void recordEvent(@NotNull Machine machine, @NotNull MachineTickBatchEvent.Kind kind, int value) {
+        this.eventBuffer.get().add(machine, (byte) kind.ordinal(), value);
+    }
+
+    /**
+     * Get the amount of ticks which were skipped because the previous tick was still running
+     *
+     * @return Amount of skipped ticks
+     */
+    public long getOverrunTicks() {
+        return this.overrunTicks.get();
+    }
+
+    /**
+     * Get the amount of machines which are currently fast forwarded
+     *
+     * @return Amount of fast forwarded machines
+     */
+    public int getParkedCount() {
+        return this.parkedQueue.size();
+    }
+
+    /**
+     * Get the amount of furnaces which are currently ticked in the {@link FurnaceLane}
+     *
+     * @return Amount of furnaces in the lane
+     */
+    public int getLaneCount() {
+        return this.lane.size();
+    }
+
+    /**
+     * Apply the ticks fast forwarded machines have skipped so far
+     * <p>This brings their state up to date, for example before saving.
+     * Timers of furnaces in the {@link FurnaceLane} are written back to them.</p>
+     * <p>Waits for a tick which is still running to finish, machines are settled in between ticks.</p>
+     */
+    public void settle() {
+        settle(() -> null);
+    }
+
+    /**
+     * Settle machines like {@link #settle()}, then run an action before the next tick starts
+     * <p>No tick changes machines while the action runs, so it sees them settled, for example to copy them for saving.
+     * The action must not wait for anything the tick itself waits for.</p>
+     *
+     * @param action Action to run once machines are settled
+     * @param <T>    Type of the action's result
+     * @return Result of the action
+     */
+    public <T> T settle(@NotNull Supplier<T> action) {
+        if (Thread.currentThread() == this.tickThread) {
+            settleMachines();
+            return action.get();
+        }
+        acquireTick();
+        // Settling again from within the action doesn't wait for itself
+        this.tickThread = Thread.currentThread();
+        try {
+            settleMachines();
+            return action.get();
+        } finally {
+            this.tickThread = null;
+            this.ticking.set(false);
+        }
+    }
+
+    // Only called by the thread holding the tick guard, the lane and parked machines belong to it
+    private void settleMachines() {
+        this.lane.sync();
+        long tick = this.currentTick;
+        for (Parked parked : this.parkedMachines.values()) {
+            int skipped = (int) Math.min(tick - parked.parkedAt, parked.ticks);
+            if (skipped > 0) {
+                parked.machine.fastForward(skipped);
+                parked.parkedAt += skipped;
+                parked.ticks -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Get the amount of machines which were awake during the last tick
+     *
+     * @return Amount of awake machines
+     */
+    public int getAwakeCount() {
+        return this.awakeCount;
+    }
+
     @Override
     public void run() {
-        running = true;
+        // Async timers don't wait for the previous run, never let two ticks overlap
+        if (!this.ticking.compareAndSet(false, true)) {
+            this.overrunTicks.incrementAndGet();
+            return;
+        }
         try {
-            for (Furnace furnace : furnaceManager.getAllFurnaces()) {
-                if (!running) {
-                    return;
-                }
-                furnace.tick();
+            // A run which was already scheduled when this was cancelled
+            if (this.cancelled) return;
+            this.tickThread = Thread.currentThread();
+            tickMachines();
+        } finally {
+            this.tickThread = null;
+            this.ticking.set(false);
+        }
+    }
+
+    // Wait for the running tick to finish, new ticks can't start until the guard is released again
+    private void acquireTick() {
+        boolean interrupted = false;
+        while (!this.ticking.compareAndSet(false, true)) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tickMachines() {
+        running = true;
+        this.currentTick++;
+        if (this.parallelism != this.shardedParallelism || this.shardSelector != this.shardedSelector) {
+            reshard();
+        }
+        this.batchingEvents = this.eventBatchWindow > 0 && Event.hasListeners(MachineTickBatchEvent.getHandlerList());
+        // Furnaces in the lane don't call or record per tick events, and fast forwarded furnaces are parked instead
+        this.laning = !this.fastForward && !this.batchingEvents &&
+                !Event.hasListeners(FurnaceFuelBurningEvent.getHandlerList()) &&
+                !Event.hasListeners(FurnaceCookingEvent.getHandlerList());
+        if (!this.laning && this.lane.size() > 0) {
+            this.lane.clear(furnace -> getShard(furnace).add(furnace, this.currentTick - 1));
+        }
+        // Recipes/fuels changed, machines which were idle may be able to make progress now
+        int version = this.recipeManager.getRegistryVersion();
+        if (version != this.registryVersion) {
+            this.registryVersion = version;
+            wakeAll();
+        }
+        Machine forgotten;
+        while ((forgotten = this.forgetQueue.poll()) != null) {
+            // Parked entries left in the queue are skipped once the machine is no longer in the map
+            this.parkedMachines.remove(forgotten);
+            if (forgotten instanceof Furnace) {
+                this.lane.remove((Furnace) forgotten);
+            }
+            getShard(forgotten).remove(forgotten);
+        }
+        Machine woken;
+        while ((woken = this.wakeQueue.poll()) != null) {
+            if (!isRegistered(woken)) continue;
+            if (woken instanceof Furnace && this.lane.remove((Furnace) woken)) {
+                getShard(woken).add(woken, this.currentTick - 1);
+                continue;
             }
+            Parked parked = this.parkedMachines.remove(woken);
+            if (parked != null) {
+                resume(parked);
+            } else {
+                getShard(woken).add(woken, this.currentTick - 1);
+            }
+        }
+        Parked parked;
+        while ((parked = this.parkedQueue.peek()) != null && parked.resumeAt <= this.currentTick) {
+            this.parkedQueue.poll();
+            // Machines which were woken early have already been resumed
+            if (this.parkedMachines.remove(parked.machine, parked)) {
+                resume(parked);
+            }
+        }
+        // Furnaces which reached their next state change are ticked on their own from the next tick on
+        this.lane.tick(furnace -> getShard(furnace).add(furnace, this.currentTick));
 
-            for (BrewingStand stand : brewingManager.getAllStands()) {
-                if (!running) {
-                    return;
+        if (this.executor == null) {
+            tickShard(this.shards[0]);
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(this.shards.length);
+            for (Shard shard : this.shards) {
+                if (shard.machines.isEmpty()) continue;
+                tasks.add(() -> {
+                    tickShard(shard);
+                    return null;
+                });
+            }
+            try {
+                // Barrier, all shards finish this tick before the next one starts
+                for (Future<Void> future : this.executor.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        ex.getCause().printStackTrace();
+                    }
                 }
-                stand.tick();
+            } catch (InterruptedException | RejectedExecutionException ex) {
+                // The tick was cancelled while waiting
+                Thread.currentThread().interrupt();
+                return;
             }
+        }
+        int awake = 0;
+        int deferred = 0;
+        for (Shard shard : this.shards) {
+            for (Parked park : shard.parking) {
+                if (this.laning) {
+                    this.lane.add((Furnace) park.machine, park.ticks);
+                } else {
+                    this.parkedMachines.put(park.machine, park);
+                    this.parkedQueue.add(park);
+                }
+            }
+            shard.parking.clear();
+            awake += shard.machines.size();
+            deferred += shard.deferred;
+        }
+        this.awakeCount = awake;
+        this.deferredCount = deferred;
+        callEventBatch();
+        if (!running) {
+            return;
+        }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+        int journalInterval = this.journalInterval;
+        if (journalInterval > 0 && ++this.journalTicks >= journalInterval) {
+            this.journalTicks = 0;
+            this.lane.sync();
+            this.furnaceManager.journalChanges();
+            this.brewingManager.journalChanges();
         }
+        if (this.tick % 20 == 0) {
+            this.furnaceManager.unloadFurnaces();
+        }
+
         tick++;
         if (tick >= 6000) {
+            // Both settle machines before copying them, this thread already holds the tick guard
             this.furnaceManager.saveAll();
             this.brewingManager.saveAll();
             this.tick = 0;
         }
     }
 
+    private void tickShard(Shard shard) {
+        List<Machine> machines = shard.machines;
+        long[] ticked = shard.ticked;
+        int size = machines.size();
+        long tick = this.currentTick;
+        long budget = this.tickBudget;
+        long deadline = System.nanoTime() + budget;
+        // Round robin, continue with the machine the last tick stopped at
+        int index = shard.cursor < size ? shard.cursor : 0;
+        int visited = 0;
+        boolean removed = false;
+        while (visited < size && running) {
+            if (budget > 0 && visited > 0 && System.nanoTime() - deadline > 0) {
+                break;
+            }
+            Machine machine = machines.get(index);
+            // Deferred machines missed ticks, give them all at once
+            long missed = tick - ticked[index];
+            boolean idle = false;
+            int fastForwardTicks = 0;
+            try {
+                for (long i = 0; i < missed && !idle; i++) {
+                    machine.tick();
+                    idle = machine.isIdle();
+                }
+                if (!idle && (this.fastForward || (this.laning && machine instanceof Furnace))) {
+                    fastForwardTicks = machine.getFastForwardTicks();
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            ticked[index] = tick;
+            if (idle) {
+                shard.set.remove(machine);
+                machines.set(index, null);
+                removed = true;
+            } else if (fastForwardTicks > 0) {
+                // Parked or moved into the lane by the tick thread once all shards are done
+                shard.set.remove(machine);
+                shard.parking.add(new Parked(machine, tick, fastForwardTicks));
+                machines.set(index, null);
+                removed = true;
+            }
+            visited++;
+            if (++index == size) index = 0;
+        }
+        shard.deferred = size - visited;
+        if (removed) {
+            // Remove machines which went to sleep, keeping the round robin order
+            int awake = 0;
+            int cursor = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == index) cursor = awake;
+                Machine machine = machines.get(i);
+                if (machine != null) {
+                    ticked[awake] = ticked[i];
+                    machines.set(awake++, machine);
+                }
+            }
+            machines.subList(awake, size).clear();
+            index = cursor;
+        }
+        shard.cursor = index;
+    }
+
+    // Collect the events machines recorded this tick, and call them once the window is over
+    private void callEventBatch() {
+        for (EventBuffer buffer : this.eventBuffers) {
+            this.eventBatch.addAll(buffer);
+            buffer.size = 0;
+            // Threads of a previous worker pool
+            if (!buffer.thread.isAlive()) {
+                this.eventBuffers.remove(buffer);
+            }
+        }
+        this.eventBatchTicks++;
+        if (this.eventBatchTicks < this.eventBatchWindow && this.batchingEvents) return;
+        this.eventBatchTicks = 0;
+        EventBuffer batch = this.eventBatch;
+        if (batch.size == 0) return;
+        MachineTickBatchEvent event = new MachineTickBatchEvent(Arrays.copyOf(batch.machines, batch.size),
+                Arrays.copyOf(batch.kinds, batch.size), Arrays.copyOf(batch.values, batch.size), batch.size);
+        Arrays.fill(batch.machines, 0, batch.size, null);
+        batch.size = 0;
+        event.callEvent();
+    }
+
+    private Shard getShard(Machine machine) {
+        Shard[] shards = this.shards;
+        if (shards.length == 1) return shards[0];
+        ToIntFunction<Machine> selector = this.shardedSelector;
+        int group = selector != null ? selector.applyAsInt(machine) : machine.getUniqueID().hashCode();
+        return shards[Math.floorMod(group, shards.length)];
+    }
+
+    // Redistribute awake machines after the parallelism or shard selector changed
+    private void reshard() {
+        int parallelism = this.parallelism;
+        Shard[] oldShards = this.shards;
+        if (this.executor != null) {
+            this.executor.shutdown();
+            this.executor = null;
+        }
+        Shard[] shards = new Shard[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            shards[i] = new Shard();
+        }
+        this.shards = shards;
+        this.shardedParallelism = parallelism;
+        this.shardedSelector = this.shardSelector;
+        if (parallelism > 1) {
+            AtomicInteger threadId = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "VirtualFurnace-Tick-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        for (Shard shard : oldShards) {
+            for (int i = 0; i < shard.machines.size(); i++) {
+                getShard(shard.machines.get(i)).add(shard.machines.get(i), shard.ticked[i]);
+            }
+        }
+    }
+
+    // Apply the ticks a machine skipped and tick it again from this tick on
+    private void resume(Parked parked) {
+        int skipped = (int) Math.min(this.currentTick - parked.parkedAt - 1, parked.ticks);
+        if (skipped > 0) {
+            try {
+                parked.machine.fastForward(skipped);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        getShard(parked.machine).add(parked.machine, this.currentTick - 1);
+    }
+
+    private boolean isRegistered(Machine machine) {
+        if (machine instanceof Furnace) {
+            return this.furnaceManager.getLoadedFurnace(machine.getUniqueID()) == machine;
+        } else if (machine instanceof BrewingStand) {
+            return this.brewingManager.getByID(machine.getUniqueID()) == machine;
+        }
+        return false;
+    }
+
+    /**
+     * Stop ticking machines
+     * <p>Waits for a tick which is still running to finish, so machines are no longer
+     * touched by the tick once this returns.</p>
+     */
     @Override
     public synchronized void cancel() throws IllegalStateException {
+        this.cancelled = true;
         this.running = false;
         Bukkit.getScheduler().cancelTask(id);
+        // Called from the tick itself, it stops once this returns
+        if (Thread.currentThread() != this.tickThread) {
+            acquireTick();
+            this.ticking.set(false);
+        }
+        if (this.executor != null) {
+            this.executor.shutdown();
+            try {
+                if (!this.executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    Util.error("Machines were still being ticked after the tick was cancelled");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Shard {
+
+        private final List<Machine> machines = new ArrayList<>();
+        private final Set<Machine> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final List<Parked> parking = new ArrayList<>();
+        // Tick each machine was last ticked at, same order as machines
+        private long[] ticked = new long[16];
+        private int cursor;
+        private int deferred;
+
+        private void add(Machine machine, long ticked) {
+            if (this.set.add(machine)) {
+                int index = this.machines.size();
+                if (index == this.ticked.length) {
+                    this.ticked = Arrays.copyOf(this.ticked, index * 2);
+                }
+                this.ticked[index] = ticked;
+                this.machines.add(machine);
+            }
+        }
+
+        private void remove(Machine machine) {
+            if (!this.set.remove(machine)) return;
+            int size = this.machines.size();
+            int index = 0;
+            while (this.machines.get(index) != machine) index++;
+            System.arraycopy(this.ticked, index + 1, this.ticked, index, size - index - 1);
+            this.machines.remove(index);
+            if (index < this.cursor) this.cursor--;
+        }
+
+    }
+
+    private static class EventBuffer {
+
+        private final Thread thread;
+        private Machine[] machines = new Machine[64];
+        private byte[] kinds = new byte[64];
+        private int[] values = new int[64];
+        private int size;
+
+        private EventBuffer(Thread thread) {
+            this.thread = thread;
+        }
+
+        private void add(Machine machine, byte kind, int value) {
+            ensureCapacity(this.size + 1);
+            this.machines[this.size] = machine;
+            this.kinds[this.size] = kind;
+            this.values[this.size] = value;
+            this.size++;
+        }
+
+        private void addAll(EventBuffer buffer) {
+            int size = buffer.size;
+            if (size == 0) return;
+            ensureCapacity(this.size + size);
+            System.arraycopy(buffer.machines, 0, this.machines, this.size, size);
+            System.arraycopy(buffer.kinds, 0, this.kinds, this.size, size);
+            System.arraycopy(buffer.values, 0, this.values, this.size, size);
+            Arrays.fill(buffer.machines, 0, size, null);
+            this.size += size;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= this.machines.length) return;
+            int length = Math.max(capacity, this.machines.length * 2);
+            this.machines = Arrays.copyOf(this.machines, length);
+            this.kinds = Arrays.copyOf(this.kinds, length);
+            this.values = Arrays.copyOf(this.values, length);
+        }
+
+    }
+
+    private static class Parked {
+
+        private final Machine machine;
+        private final long resumeAt;
+        private long parkedAt;
+        private int ticks;
+
+        private Parked(Machine machine, long parkedAt, int ticks) {
+            this.machine = machine;
+            this.parkedAt = parkedAt;
+            this.ticks = ticks;
+            // The tick after the skipped ticks is the next state change
+            this.resumeAt = parkedAt + ticks + 1;
+        }
+
     }
 
 }
@@ -0,0 +1,189 @@
+package com.shanebeestudios.api.task;
+
+import com.shanebeestudios.api.VirtualFurnaceAPI;
+import com.shanebeestudios.api.machine.Machine;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.inventory.*;
+import org.bukkit.scheduler.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Main thread task for updating the inventories of {@link Machine Machines}
+ * <p>The {@link FurnaceTick} doesn't touch Bukkit inventories. Machines which are being viewed
+ * {@link #publish(Machine, int, InventoryView.Property[], int[], ItemStack[]) publish} their state after each tick,
+ * this task applies the published updates to their inventories and views once per server tick.
+ * Changes players made to those inventories are handed back to the machines,
+ * which pick them up at the start of their next tick.</p>
+ * <p>Inventories of machines which are no longer viewed are released.</p>
+ * <p>View properties are only sent to a viewer when they differ from what was last sent to that viewer.</p>
+ */
+public class ViewTick extends BukkitRunnable {
+
+    private final VirtualFurnaceAPI virtualFurnaceAPI;
+    // Updates published by the tick thread, swapped with the buffer being applied each tick
+    private List<ViewUpdate> publishBuffer = new ArrayList<>();
+    private List<ViewUpdate> applyBuffer = new ArrayList<>();
+    private final Object bufferLock = new Object();
+    // Inventories which are tracked for changes, only touched on the main thread
+    private final Queue<Tracked> trackQueue = new ConcurrentLinkedQueue<>();
+    private final Map<Machine, Tracked> tracked = new IdentityHashMap<>();
+    private int id;
+
+    public ViewTick(VirtualFurnaceAPI virtualFurnaceAPI) {
+        this.virtualFurnaceAPI = virtualFurnaceAPI;
+    }
+
+    public void start() {
+        BukkitTask task = this.runTaskTimer(virtualFurnaceAPI.getJavaPlugin(), 1, 1L);
+        id = task.getTaskId();
+    }
+
+    /**
+     * Publish the state of a machine after it was ticked
+     * <p><b>Internal use only!</b> Called by machines which are being viewed.</p>
+     *
+     * @param machine     Machine which was ticked
+     * @param editVersion Version of the last player changes the machine picked up
+     * @param properties  View properties to update
+     * @param values      Values of the view properties
+     * @param slots       Copies of the machine's slots, or null if they didn't change
+     */
+    public void publish(@NotNull Machine machine, int editVersion, @NotNull InventoryView.Property[] properties,
+                        @NotNull int[] values, @Nullable ItemStack[] slots) {
+        ViewUpdate update = new ViewUpdate(machine, editVersion, properties, values, slots);
+        synchronized (this.bufferLock) {
+            this.publishBuffer.add(update);
+        }
+    }
+
+    /**
+     * Track an inventory for changes made to it
+     * <p><b>Internal use only!</b> Changes made to the inventory are handed to the machine
+     * on the next server tick. Inventories stay tracked while they have viewers.</p>
+     *
+     * @param machine Machine the inventory belongs to
+     * @param slots   Copies of the slots as they currently are in the inventory
+     */
+    public void track(@NotNull Machine machine, @Nullable ItemStack[] slots) {
+        this.trackQueue.add(new Tracked(machine, slots));
+    }
+
+    /**
+     * Stop sending updates to a viewer who closed a machine's inventory
+     * <p><b>Internal use only!</b> Called on the main thread when an inventory is closed.
+     * The machine stays tracked until the next server tick, so changes made right before closing are picked up.</p>
+     *
+     * @param machine Machine the inventory belongs to
+     * @param viewer  Viewer who closed the inventory
+     */
+    public void close(@NotNull Machine machine, @NotNull HumanEntity viewer) {
+        Tracked tracked = this.tracked.get(machine);
+        if (tracked != null) {
+            tracked.sent.remove(viewer);
+        }
+    }
+
+    @Override
+    public void run() {
+        Tracked track;
+        while ((track = this.trackQueue.poll()) != null) {
+            // Machines which are already tracked know their slots better
+            this.tracked.putIfAbsent(track.machine, track);
+        }
+
+        // Hand changes players made since the last tick to the machines
+        for (Tracked tracked : this.tracked.values()) {
+            Inventory inventory = tracked.machine.getViewInventory();
+            if (inventory == null) continue;
+            ItemStack[] slots = tracked.slots;
+            boolean edited = false;
+            for (int i = 0; i < slots.length && !edited; i++) {
+                edited = !Objects.equals(slots[i], inventory.getItem(i));
+            }
+            if (edited) {
+                ItemStack[] edit = new ItemStack[slots.length];
+                for (int i = 0; i < slots.length; i++) {
+                    ItemStack item = inventory.getItem(i);
+                    edit[i] = item != null ? item.clone() : null;
+                }
+                tracked.slots = edit;
+                tracked.machine.handOffSlots(edit.clone());
+                tracked.machine.wake();
+            }
+        }
+
+        List<ViewUpdate> updates;
+        synchronized (this.bufferLock) {
+            updates = this.publishBuffer;
+            this.publishBuffer = this.applyBuffer;
+        }
+        for (ViewUpdate update : updates) {
+            Tracked tracked = this.tracked.get(update.machine);
+            if (tracked == null) continue;
+            Inventory inventory = update.machine.getViewInventory();
+            if (inventory == null) continue;
+            // Slots from before the machine picked up the latest player changes are outdated
+            if (update.slots != null && update.editVersion == update.machine.getSlotEditVersion()) {
+                for (int i = 0; i < update.slots.length; i++) {
+                    inventory.setItem(i, update.slots[i]);
+                }
+                tracked.slots = update.slots;
+            }
+            for (HumanEntity viewer : inventory.getViewers()) {
+                int[] sent = tracked.sent.get(viewer);
+                if (sent == null) {
+                    // New viewer, send everything
+                    sent = new int[update.values.length];
+                    Arrays.fill(sent, Integer.MIN_VALUE);
+                    tracked.sent.put(viewer, sent);
+                }
+                InventoryView view = null;
+                for (int i = 0; i < update.properties.length; i++) {
+                    int value = update.values[i];
+                    if (sent[i] == value) continue;
+                    if (view == null) view = viewer.getOpenInventory();
+                    view.setProperty(update.properties[i], value);
+                    sent[i] = value;
+                }
+            }
+        }
+        updates.clear();
+        this.applyBuffer = updates;
+
+        // Machines stop being viewed when their last viewer closes the inventory,
+        // their changes were handed off above so the inventory isn't needed anymore
+        this.tracked.values().removeIf(tracked -> {
+            if (tracked.machine.isViewed()) return false;
+            tracked.machine.releaseInventory();
+            return true;
+        });
+    }
+
+    @Override
+    public synchronized void cancel() throws IllegalStateException {
+        Bukkit.getScheduler().cancelTask(id);
+    }
+
+    private record ViewUpdate(Machine machine, int editVersion, InventoryView.Property[] properties, int[] values,
+                              ItemStack[] slots) {
+    }
+
+    private static class Tracked {
+
+        private final Machine machine;
+        private ItemStack[] slots;
+        // Property values last sent to each viewer
+        private final Map<HumanEntity, int[]> sent = new HashMap<>(4);
+
+        private Tracked(Machine machine, ItemStack[] slots) {
+            this.machine = machine;
+            this.slots = slots;
+        }
+
+    }
+
+}
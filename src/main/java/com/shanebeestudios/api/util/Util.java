@@ -3,6 +3,7 @@ package com.shanebeestudios.api.util;
 import com.shanebeestudios.api.VirtualFurnaceAPI;
 import org.bukkit.*;
 import org.bukkit.command.CommandSender;
+import org.bukkit.inventory.ItemStack;
 
 public class Util {
 
@@ -91,6 +92,38 @@ public class Util {
         sender.sendMessage(ChatColor.translateAlternateColorCodes('&', PREFIX + message));
     }
 
+    /**
+     * Get a fingerprint of an ItemStack based on its material and meta
+     * <p>The amount of the ItemStack is ignored, so two ItemStacks which are
+     * {@link ItemStack#isSimilar(ItemStack) similar} will have the same fingerprint</p>
+     *
+     * @param itemStack ItemStack to fingerprint
+     * @return Fingerprint of ItemStack (0 if null)
+     */
+    public static int getFingerprint(ItemStack itemStack) {
+        if (itemStack == null) return 0;
+        int hash = 31 + itemStack.getType().ordinal();
+        if (itemStack.hasItemMeta()) {
+            hash = 31 * hash + itemStack.getItemMeta().hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Copy ItemStacks, keeping nulls
+     * <p>This is used to hand slots from one thread to another</p>
+     *
+     * @param itemStacks ItemStacks to copy
+     * @return Array of copies
+     */
+    public static ItemStack[] copyItems(ItemStack... itemStacks) {
+        ItemStack[] copy = new ItemStack[itemStacks.length];
+        for (int i = 0; i < itemStacks.length; i++) {
+            copy[i] = itemStacks[i] != null ? itemStacks[i].clone() : null;
+        }
+        return copy;
+    }
+
     /**
      * Check if a class exists
      *
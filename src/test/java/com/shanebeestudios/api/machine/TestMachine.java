@@ -0,0 +1,57 @@
+package com.shanebeestudios.api.machine;
+
+import com.shanebeestudios.api.storage.*;
+import org.bukkit.configuration.serialization.ConfigurationSerializable;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Machine without any server state, used to test storages
+ */
+public class TestMachine extends Machine implements ConfigurationSerializable {
+
+    private final int value;
+
+    public TestMachine(@NotNull UUID uuid, String name, int value) {
+        super(uuid, name);
+        this.value = value;
+    }
+
+    public int getValue() {
+        return this.value;
+    }
+
+    @Override
+    public void openInventory(Player player) {
+    }
+
+    public static TestMachine deserialize(Map<String, Object> args) {
+        return new TestMachine(UUID.fromString((String) args.get("uuid")), (String) args.get("name"),
+                ((Number) args.get("value")).intValue());
+    }
+
+    @Override
+    public @NotNull Map<String, Object> serialize() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("name", getName());
+        result.put("uuid", getUniqueID().toString());
+        result.put("value", this.value);
+        return result;
+    }
+
+    public static TestMachine readBinary(@NotNull BinaryInput in) throws IOException {
+        UUID uuid = in.readUUID();
+        String name = in.readUTF();
+        return new TestMachine(uuid, name, in.readInt());
+    }
+
+    public void writeBinary(@NotNull BinaryOutput out) throws IOException {
+        out.writeUUID(getUniqueID());
+        out.writeUTF(getName());
+        out.writeInt(this.value);
+    }
+
+}
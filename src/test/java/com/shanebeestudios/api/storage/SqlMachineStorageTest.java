@@ -0,0 +1,192 @@
+package com.shanebeestudios.api.storage;
+
+import com.shanebeestudios.api.machine.TestMachine;
+import org.bukkit.configuration.serialization.ConfigurationSerialization;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SqlMachineStorageTest {
+
+    @TempDir
+    Path folder;
+
+    private File file;
+    private SqlMachineStorage<TestMachine> storage;
+
+    @BeforeAll
+    static void registerMachine() {
+        ConfigurationSerialization.registerClass(TestMachine.class, "TestMachine");
+    }
+
+    @BeforeEach
+    void createStorage() {
+        this.file = this.folder.resolve("machines.db").toFile();
+        this.storage = createStorage(this.file);
+    }
+
+    @AfterEach
+    void closeStorage() {
+        this.storage.close();
+    }
+
+    private static SqlMachineStorage<TestMachine> createStorage(File file) {
+        return new SqlMachineStorage<>(file, "machines", TestMachine::writeBinary, TestMachine::readBinary);
+    }
+
+    // Loads from a fresh storage on the same file, so nothing pending in memory is seen
+    private Map<UUID, TestMachine> reload() {
+        SqlMachineStorage<TestMachine> storage = createStorage(this.file);
+        try {
+            Map<UUID, TestMachine> machines = new HashMap<>();
+            for (TestMachine machine : storage.load()) {
+                machines.put(machine.getUniqueID(), machine);
+            }
+            return machines;
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void saveAndReload() throws IOException {
+        TestMachine first = new TestMachine(UUID.randomUUID(), "first", 1);
+        TestMachine second = new TestMachine(UUID.randomUUID(), "second", 2);
+        assertFalse(this.storage.exists());
+        this.storage.save(first);
+        this.storage.save(second);
+        this.storage.prepareWrite().write();
+
+        assertTrue(this.storage.exists());
+        Map<UUID, TestMachine> machines = reload();
+        assertEquals(2, machines.size());
+        assertEquals("first", machines.get(first.getUniqueID()).getName());
+        assertEquals(2, machines.get(second.getUniqueID()).getValue());
+    }
+
+    @Test
+    void saveUpsertsExistingRow() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        this.storage.save(new TestMachine(uuid, "before", 1));
+        this.storage.prepareWrite().write();
+        this.storage.save(new TestMachine(uuid, "after", 2));
+        this.storage.prepareWrite().write();
+
+        Map<UUID, TestMachine> machines = reload();
+        assertEquals(1, machines.size());
+        assertEquals("after", machines.get(uuid).getName());
+        assertEquals(2, machines.get(uuid).getValue());
+        assertEquals(2, this.storage.read(uuid).getValue());
+    }
+
+    @Test
+    void removeDeletesRow() throws IOException {
+        TestMachine kept = new TestMachine(UUID.randomUUID(), "kept", 1);
+        TestMachine removed = new TestMachine(UUID.randomUUID(), "removed", 2);
+        this.storage.save(kept);
+        this.storage.save(removed);
+        this.storage.prepareWrite().write();
+        this.storage.remove(removed.getUniqueID());
+        this.storage.prepareWrite().write();
+
+        assertNull(this.storage.read(removed.getUniqueID()));
+        assertEquals(Set.of(kept.getUniqueID()), reload().keySet());
+    }
+
+    @Test
+    void compactDeletesStaleRows() throws IOException {
+        TestMachine kept = new TestMachine(UUID.randomUUID(), "kept", 1);
+        TestMachine stale = new TestMachine(UUID.randomUUID(), "stale", 2);
+        this.storage.save(kept);
+        this.storage.save(stale);
+        this.storage.prepareWrite().write();
+        this.storage.compact(List.of(new TestMachine(kept.getUniqueID(), "kept", 3)));
+        this.storage.prepareWrite().write();
+
+        Map<UUID, TestMachine> machines = reload();
+        assertEquals(Set.of(kept.getUniqueID()), machines.keySet());
+        assertEquals(3, machines.get(kept.getUniqueID()).getValue());
+    }
+
+    @Test
+    void failedWriteIsRolledBackAndRequeued() throws IOException, SQLException {
+        TestMachine existing = new TestMachine(UUID.randomUUID(), "existing", 1);
+        this.storage.save(existing);
+        this.storage.prepareWrite().write();
+
+        // Fails the upsert of one machine, after the other one was written in the same transaction
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TRIGGER fail BEFORE INSERT ON machines WHEN NEW.name = 'fail' " +
+                    "BEGIN SELECT RAISE(ABORT, 'failed'); END");
+        }
+        TestMachine written = new TestMachine(UUID.randomUUID(), "written", 2);
+        TestMachine failing = new TestMachine(UUID.randomUUID(), "fail", 3);
+        this.storage.save(written);
+        this.storage.save(failing);
+        this.storage.remove(existing.getUniqueID());
+        MachineStorage.Write write = this.storage.prepareWrite();
+        assertThrows(IOException.class, write::write);
+
+        // Nothing of the transaction is kept
+        assertEquals(Set.of(existing.getUniqueID()), reload().keySet());
+
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TRIGGER fail");
+        }
+        // The failed write is written again with the next one
+        this.storage.prepareWrite().write();
+        assertEquals(Set.of(written.getUniqueID(), failing.getUniqueID()), reload().keySet());
+    }
+
+    @Test
+    void failedWriteKeepsNewerChanges() throws IOException, SQLException {
+        UUID uuid = UUID.randomUUID();
+        this.storage.save(new TestMachine(uuid, "first", 1));
+        this.storage.prepareWrite().write();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file.getAbsolutePath());
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TRIGGER fail BEFORE INSERT ON machines WHEN NEW.name = 'fail' " +
+                    "BEGIN SELECT RAISE(ABORT, 'failed'); END");
+        }
+        this.storage.save(new TestMachine(uuid, "fail", 2));
+        MachineStorage.Write write = this.storage.prepareWrite();
+        // Saved while the write is running, takes priority over the failed one
+        this.storage.save(new TestMachine(uuid, "newer", 3));
+        assertThrows(IOException.class, write::write);
+        this.storage.prepareWrite().write();
+
+        assertEquals("newer", reload().get(uuid).getName());
+    }
+
+    @Test
+    void migrateFromYaml() throws IOException {
+        File yamlFile = this.folder.resolve("machines.yml").toFile();
+        File yamlChanges = this.folder.resolve("machines-changes.yml").toFile();
+        YamlMachineStorage<TestMachine> yaml = new YamlMachineStorage<>(yamlFile, yamlChanges, "machines", TestMachine.class);
+        TestMachine compacted = new TestMachine(UUID.randomUUID(), "compacted", 1);
+        TestMachine changed = new TestMachine(UUID.randomUUID(), "changed", 2);
+        yaml.compact(List.of(compacted));
+        yaml.prepareWrite().write();
+        yaml.save(changed);
+        yaml.prepareWrite().write();
+
+        assertEquals(2, yaml.migrateTo(this.storage));
+        assertTrue(this.storage.exists());
+        assertFalse(yamlFile.exists());
+        assertFalse(yamlChanges.exists());
+        assertTrue(new File(yamlFile.getPath() + ".migrated").exists());
+
+        Map<UUID, TestMachine> machines = reload();
+        assertEquals(Set.of(compacted.getUniqueID(), changed.getUniqueID()), machines.keySet());
+        assertEquals(2, machines.get(changed.getUniqueID()).getValue());
+    }
+
+}